@@ -0,0 +1,268 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import javax.json.JsonObject;
+
+import org.dataconservancy.pass.model.Journal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves a batch of DOIs as a pipeline: each DOI is verified, its Crossref record fetched, and its journal found
+ * or created in PASS, using the same steps as a single request. The Crossref records are fetched several DOIs to a
+ * call where the servlet allows it. The Crossref and PASS stages each have their own concurrency limit, shared by
+ * all of the batches in progress, so that large or many batches neither flood Crossref nor swamp PASS. A DOI which
+ * appears more than once in a batch is resolved once, as is a journal shared by several DOIs.
+ *
+ * <p>Batches may be run on threads of the resolver's own, a set number at a time, so that a batch does not hold the
+ * thread of the request which submitted it.</p>
+ */
+public class BatchResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchResolver.class);
+
+    private final PassDoiServlet servlet;
+    //shared by all batches
+    private final Semaphore xrefPermits;
+    private final ExecutorService passStage;
+    private final ExecutorService batches;
+
+    /**
+     * @param servlet         - the servlet providing the resolution steps
+     * @param xrefConcurrency - the maximum number of Crossref lookups in progress for all batches, counting a lookup
+     *                        of several DOIs together as one
+     * @param passConcurrency - the maximum number of PASS lookups and updates in progress for all batches
+     * @param maxBatches      - the maximum number of submitted batches run at once; others wait their turn
+     */
+    public BatchResolver(PassDoiServlet servlet, int xrefConcurrency, int passConcurrency, int maxBatches) {
+        this.servlet = servlet;
+        this.xrefPermits = new Semaphore(Math.max(1, xrefConcurrency));
+        AtomicInteger passThreads = new AtomicInteger();
+        this.passStage = Executors.newFixedThreadPool(Math.max(1, passConcurrency), r -> {
+            Thread t = new Thread(r, "batch-resolver-" + passThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger batchThreads = new AtomicInteger();
+        this.batches = Executors.newFixedThreadPool(Math.max(1, maxBatches), r -> {
+            Thread t = new Thread(r, "batch-" + batchThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Resolve a batch of DOIs, as for {@link #resolve(List, BiConsumer)}, on a thread of the resolver's own
+     *
+     * @param dois - the DOIs, as supplied by the client
+     * @param sink - receives each DOI, as supplied, with its result, on the thread running the batch
+     * @return completes when every DOI has been passed to the sink
+     */
+    public CompletableFuture<Void> submit(List<String> dois, BiConsumer<String, JournalResult> sink) {
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    resolve(dois, sink);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }, batches);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * Resolve a batch of DOIs. The result for each DOI is handed to the sink, on the calling thread, as soon as it
+     * is ready, so results arrive in order of completion rather than the order of the batch. Each DOI in the batch
+     * gets a result, including duplicates and invalid DOIs.
+     *
+     * @param dois - the DOIs, as supplied by the client
+     * @param sink - receives each DOI, as supplied, with its result
+     * @throws InterruptedException if interrupted while waiting for results
+     */
+    public void resolve(List<String> dois, BiConsumer<String, JournalResult> sink) throws InterruptedException {
+        Map<String, CompletableFuture<Journal>> journals = new ConcurrentHashMap<>();
+        BlockingQueue<Runnable> ready = new LinkedBlockingQueue<>();
+        int submitted = 0;
+        int emitted = 0;
+
+        //verify the batch first, so that its dois can be fetched from Crossref together
+        Map<String, String> unique = new LinkedHashMap<>();
+        //the dois as supplied, for each normalized doi
+        Map<String, List<String>> supplied = new HashMap<>();
+        for (String doi : dois) {
+            String verifiedDoi = servlet.verify(doi);
+            if (verifiedDoi == null) {
+                sink.accept(doi, JournalResult.error(400, "Supplied DOI is not in valid Crossref format."));
+                continue;
+            }
+            String key = PassDoiServlet.normalize(verifiedDoi);
+            unique.putIfAbsent(key, verifiedDoi);
+            supplied.computeIfAbsent(key, k -> new ArrayList<>()).add(doi);
+        }
+
+        List<String> verifiedDois = new ArrayList<>(unique.values());
+        int chunkSize = Math.max(1, servlet.crossref.bulkSize());
+        for (int i = 0; i < verifiedDois.size(); i += chunkSize) {
+            List<String> chunk = verifiedDois.subList(i, Math.min(i + chunkSize, verifiedDois.size()));
+            //wait for a crossref slot, passing on any results which come in while we wait
+            while (!xrefPermits.tryAcquire(10, MILLISECONDS)) {
+                emitted += emit(ready);
+            }
+            Map<String, CompletableFuture<JsonObject>> works;
+            try {
+                works = chunk.size() == 1 ?
+                        Collections.singletonMap(PassDoiServlet.normalize(chunk.get(0)),
+                                                 servlet.crossref.metadataAsync(chunk.get(0), true)) :
+                        servlet.crossref.metadataBulkAsync(chunk, true);
+                CompletableFuture.allOf(works.values().toArray(new CompletableFuture<?>[0]))
+                                 .whenComplete((v, e) -> xrefPermits.release());
+            } catch (RuntimeException e) {
+                xrefPermits.release();
+                works = Collections.emptyMap();
+                for (String verifiedDoi : chunk) {
+                    String key = PassDoiServlet.normalize(verifiedDoi);
+                    submitted += deliver(failed(e), verifiedDoi, supplied.get(key), ready, sink);
+                }
+            }
+            for (Map.Entry<String, CompletableFuture<JsonObject>> entry : works.entrySet()) {
+                String verifiedDoi = unique.get(entry.getKey());
+                CompletableFuture<JournalResult> resolution = entry.getValue().thenApplyAsync(
+                    xrefJsonObject -> servlet.resolve(verifiedDoi, xrefJsonObject,
+                                                      journal -> updateOnce(journals, journal)), passStage);
+                //pass on the results as they come in, while later chunks are still being fetched
+                submitted += deliver(resolution, verifiedDoi, supplied.get(entry.getKey()), ready, sink);
+            }
+
+            emitted += emit(ready);
+        }
+
+        while (emitted < submitted) {
+            ready.take().run();
+            emitted++;
+        }
+    }
+
+    /**
+     * stop the threads running batches and their PASS stage
+     */
+    public void shutdown() {
+        batches.shutdownNow();
+        passStage.shutdownNow();
+    }
+
+    /**
+     * queue the result of a resolution to be passed on, once it is complete, for each doi it was supplied as
+     *
+     * @param resolution  - the resolution
+     * @param verifiedDoi - the verified doi
+     * @param supplied    - the dois, as supplied, which verified to it
+     * @param ready       - the results waiting to be passed on
+     * @param sink        - receives each DOI, as supplied, with its result
+     * @return the number of results which will be queued
+     */
+    private int deliver(CompletableFuture<JournalResult> resolution, String verifiedDoi, List<String> supplied,
+                        BlockingQueue<Runnable> ready, BiConsumer<String, JournalResult> sink) {
+        for (String doi : supplied) {
+            resolution.whenComplete((result, e) -> ready.add(() -> {
+                if (e != null) {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    LOG.error("Error resolving DOI " + verifiedDoi, cause);
+                    sink.accept(doi, JournalResult.error(500, "There was an error resolving DOI " + verifiedDoi));
+                } else {
+                    sink.accept(doi, result);
+                }
+            }));
+        }
+        return supplied.size();
+    }
+
+    private static CompletableFuture<JournalResult> failed(Throwable e) {
+        CompletableFuture<JournalResult> resolution = new CompletableFuture<>();
+        resolution.completeExceptionally(e);
+        return resolution;
+    }
+
+    /**
+     * pass on the results which are ready
+     *
+     * @param ready - the results waiting to be passed on
+     * @return the number passed on
+     */
+    private int emit(BlockingQueue<Runnable> ready) {
+        int count = 0;
+        Runnable result;
+        while ((result = ready.poll()) != null) {
+            result.run();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * find or create a journal in PASS, unless another DOI in the batch has already done so for the same journal
+     *
+     * @param journals - the journals found or created for this batch, keyed by name and issns
+     * @param journal  - the journal built from Crossref metadata
+     * @return the PASS journal, as for {@link PassDoiServlet#updateJournalInPass(Journal)}
+     */
+    private Journal updateOnce(Map<String, CompletableFuture<Journal>> journals, Journal journal) {
+        String key = journal.getJournalName() + "\n" + String.join("\n", new TreeSet<>(journal.getIssns()));
+        CompletableFuture<Journal> update = new CompletableFuture<>();
+        CompletableFuture<Journal> existing = journals.putIfAbsent(key, update);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            Journal passJournal = servlet.updateJournalInPass(journal);
+            update.complete(passJournal);
+            return passJournal;
+        } catch (RuntimeException e) {
+            update.completeExceptionally(e);
+            throw e;
+        }
+    }
+}
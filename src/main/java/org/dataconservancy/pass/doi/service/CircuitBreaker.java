@@ -0,0 +1,148 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker for calls to a remote service. After a run of failed calls the breaker opens, and calls are
+ * refused straight away rather than each waiting to fail. Once the breaker has been open for a while, a single trial
+ * call is let through: if it succeeds the breaker closes, and if it fails the breaker stays open for another period.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openPeriod;
+    private final LongSupplier clock;
+
+    //guarded by this
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private long trialStartedAt;
+
+    private final LongAdder refusals = new LongAdder();
+    private final LongAdder trips = new LongAdder();
+
+    /**
+     * @param name             - the name of the remote service, for logging
+     * @param failureThreshold - the number of consecutive failures which opens the breaker
+     * @param openPeriod       - how long the breaker stays open before a trial call, in ms
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openPeriod) {
+        this(name, failureThreshold, openPeriod, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(String name, int failureThreshold, long openPeriod, LongSupplier clock) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openPeriod = openPeriod;
+        this.clock = clock;
+    }
+
+    /**
+     * ask whether a call may be made. A caller which is allowed a call must report how it went.
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean allowRequest() {
+        long now = clock.getAsLong();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt < openPeriod) {
+                    break;
+                }
+                state = State.HALF_OPEN;
+                trialStartedAt = now;
+                return true;
+            default:
+                //a trial which has not reported back in an open period is taken to have been lost
+                if (now - trialStartedAt >= openPeriod) {
+                    trialStartedAt = now;
+                    return true;
+                }
+        }
+        refusals.increment();
+        return false;
+    }
+
+    /**
+     * report a successful call
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOG.info("Calls to " + name + " are succeeding again; closing the circuit breaker");
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * report a failed call
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            LOG.warn("Calls to " + name + " are failing; opening the circuit breaker for " + openPeriod + " ms");
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+            trips.increment();
+        }
+    }
+
+    /**
+     * @return how long until a trial call will be let through, in ms; 0 if calls are being let through now
+     */
+    public synchronized long getRetryDelay() {
+        return state == State.CLOSED ? 0 : Math.max(0, openedAt + openPeriod - clock.getAsLong());
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public boolean isOpen() {
+        return getState() != State.CLOSED;
+    }
+
+    /**
+     * @return the breaker state and counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        return Json.createObjectBuilder()
+                   .add("state", getState().name().toLowerCase(Locale.ROOT))
+                   .add("trips", trips.sum())
+                   .add("refusals", refusals.sum())
+                   .build();
+    }
+}
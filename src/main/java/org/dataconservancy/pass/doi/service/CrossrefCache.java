@@ -0,0 +1,244 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * A bounded, in-memory cache of Crossref works objects, keyed by normalized DOI. Entries expire after a
+ * configurable time to live; "not found" responses from Crossref are kept for a separate (usually shorter) period
+ * so that a DOI registered after we first asked for it is picked up reasonably quickly. When the cache is full the
+ * least recently used entry is evicted. Works objects may be kept for a while after they expire, so that we have
+ * something to fall back on if Crossref is unavailable.
+ */
+public class CrossrefCache {
+
+    static final String NOT_FOUND = "Resource not found.";
+
+    private final int maxEntries;
+    private final long ttl;
+    private final long negativeTtl;
+    private final long staleTtl;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    /**
+     * @param maxEntries  - the maximum number of works objects to hold; 0 disables the cache
+     * @param ttl         - how long to keep a works object, in ms
+     * @param negativeTtl - how long to keep a "not found" response, in ms
+     */
+    public CrossrefCache(int maxEntries, long ttl, long negativeTtl) {
+        this(maxEntries, ttl, negativeTtl, 0);
+    }
+
+    /**
+     * @param maxEntries  - the maximum number of works objects to hold; 0 disables the cache
+     * @param ttl         - how long to keep a works object, in ms
+     * @param negativeTtl - how long to keep a "not found" response, in ms
+     * @param staleTtl    - how long past its expiry a works object may still be used as a fallback, in ms
+     */
+    public CrossrefCache(int maxEntries, long ttl, long negativeTtl, long staleTtl) {
+        this(maxEntries, ttl, negativeTtl, staleTtl, System::currentTimeMillis);
+    }
+
+    CrossrefCache(int maxEntries, long ttl, long negativeTtl, LongSupplier clock) {
+        this(maxEntries, ttl, negativeTtl, 0, clock);
+    }
+
+    CrossrefCache(int maxEntries, long ttl, long negativeTtl, long staleTtl, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.staleTtl = staleTtl;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CrossrefCache.Entry> eldest) {
+                if (size() > CrossrefCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * look up the works object for a doi
+     *
+     * @param doi - the verified doi
+     * @return the cached works object (or not found response), or null if we have nothing current for this doi
+     */
+    public JsonObject get(String doi) {
+        String key = PassDoiServlet.normalize(doi);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            long now = clock.getAsLong();
+            if (entry != null && entry.expires > now) {
+                hits.increment();
+                return entry.works;
+            }
+            if (entry != null && !entry.isUsableStale(now)) {
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * look up the works object for a doi, whether or not it has expired, as a fallback for when we cannot get a
+     * current one from Crossref
+     *
+     * @param doi - the verified doi
+     * @return the cached works object, or null if we have none we may use; "not found" responses are not used
+     */
+    public JsonObject getStale(String doi) {
+        synchronized (entries) {
+            Entry entry = entries.get(PassDoiServlet.normalize(doi));
+            long now = clock.getAsLong();
+            if (entry != null && (entry.expires > now || entry.isUsableStale(now))) {
+                staleHits.increment();
+                return entry.works;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * how old a works object we handed out is, if it has expired
+     *
+     * @param doi   - the verified doi
+     * @param works - the works object
+     * @return the time since the works object was cached, in ms, if it is the cached object for the doi and has
+     * expired; otherwise -1
+     */
+    public long staleness(String doi, JsonObject works) {
+        synchronized (entries) {
+            Entry entry = entries.get(PassDoiServlet.normalize(doi));
+            long now = clock.getAsLong();
+            if (entry != null && entry.works == works && entry.expires <= now) {
+                return now - entry.cached;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * cache the Crossref response for a doi. Successful works objects and "not found" responses are cached; any
+     * other error is transient as far as we know, and is not.
+     *
+     * @param doi   - the verified doi
+     * @param works - the response from Crossref
+     */
+    public void put(String doi, JsonObject works) {
+        if (maxEntries <= 0 || works == null) {
+            return;
+        }
+        long lifetime;
+        if (works.getJsonString("error") == null) {
+            lifetime = ttl;
+        } else if (isNotFound(works)) {
+            lifetime = negativeTtl;
+        } else {
+            return;
+        }
+        if (lifetime <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            long now = clock.getAsLong();
+            entries.put(PassDoiServlet.normalize(doi), new Entry(works, now, now + lifetime));
+        }
+    }
+
+    /**
+     * drop everything from the cache
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return the cache counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        return Json.createObjectBuilder()
+                   .add("size", size())
+                   .add("max-size", maxEntries)
+                   .add("hits", getHits())
+                   .add("misses", getMisses())
+                   .add("evictions", getEvictions())
+                   .add("stale-hits", getStaleHits())
+                   .build();
+    }
+
+    static boolean isNotFound(JsonObject works) {
+        return works.getJsonString("error") != null && NOT_FOUND.equals(works.getString("error"));
+    }
+
+    private class Entry {
+        private final JsonObject works;
+        private final long cached;
+        private final long expires;
+
+        Entry(JsonObject works, long cached, long expires) {
+            this.works = works;
+            this.cached = cached;
+            this.expires = expires;
+        }
+
+        boolean isUsableStale(long now) {
+            return works.getJsonString("error") == null && expires + staleTtl > now;
+        }
+    }
+}
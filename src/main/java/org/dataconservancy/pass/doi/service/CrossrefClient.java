@@ -0,0 +1,840 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.dataconservancy.pass.doi.service.PassDoiServlet.normalize;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParsingException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets Crossref works objects for DOIs: from the {@link CrossrefCache} or {@link CrossrefStore} if we have a current
+ * copy, otherwise from the Crossref API. Calls to Crossref wait for the rate limit and are refused while the circuit
+ * breaker is open; a call which fails in a way that may not happen again is retried after a backoff, as the retry
+ * budget allows, and a slow call may be hedged. The lookups of several DOIs may be made with one call to the works
+ * filter API, and lookups made at about the same time may be collected into such calls. When Crossref cannot be
+ * reached, an expired copy is used if we have one, and refreshed in the background.
+ *
+ * <p>The optional parts are set up by the servlet, from its settings, before the client is used.</p>
+ */
+public class CrossrefClient implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CrossrefClient.class);
+
+    private String BASE_URL = "https://api.crossref.org/";
+    private String VERSION = "v1/";
+    private String BASIC_PREFIX = "works/";
+    private String BULK_PREFIX = "works";
+    //the default contact we give Crossref
+    private String MAILTO = "pass@jhu.edu";
+
+    private final OkHttpClient client;
+    private final CrossrefCache cache;
+    private final ScheduledExecutorService scheduler;
+
+    //keeps whole records on disk; null if we keep them only in the cache
+    CrossrefStore store;
+    //paces our calls to Crossref; null if we do not limit them
+    CrossrefRateLimiter limiter;
+    //fails Crossref calls fast while Crossref is failing; null if we always call
+    CircuitBreaker breaker;
+    //caps Crossref retries and hedged calls; null if we neither retry nor hedge
+    RetryBudget retryBudget;
+    //the most times a failed Crossref call is retried
+    int retries;
+    //the backoff before the first retry, and the most it can grow to, in ms
+    long baseBackoff;
+    long maxBackoff;
+    //whether slow asynchronous Crossref calls are hedged with a second call
+    boolean hedging;
+    //the most dois fetched with one call to the Crossref works filter API; 1 or less to fetch one at a time
+    int bulkSize = 1;
+
+    //collect the Crossref lookups of concurrent requests into bulk calls, for whole and journal records; null if
+    //each request makes its own call
+    private RequestCollector<String, JsonObject> collector;
+    private RequestCollector<String, JsonObject> journalCollector;
+    //recent Crossref call latencies
+    final LatencyTracker latency = new LatencyTracker(256, 20);
+    //the dois whose stale Crossref records are waiting to be refreshed
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param client    - the http client to call Crossref with
+     * @param cache     - the cache of works objects
+     * @param scheduler - runs delayed calls, retries and hedges, refreshes, and collected lookups
+     */
+    public CrossrefClient(OkHttpClient client, CrossrefCache cache, ScheduledExecutorService scheduler) {
+        this.client = client;
+        this.cache = cache;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * collect lookups made at about the same time into bulk calls. Does nothing unless DOIs may be looked up in bulk.
+     *
+     * @param window - how long to wait for more lookups to go with the first, in ms
+     * @param size   - the most lookups to collect into a call
+     */
+    void collect(long window, int size) {
+        if (bulkSize <= 1) {
+            return;
+        }
+        int collectSize = Math.min(size, bulkSize);
+        collector = new RequestCollector<>(window, collectSize, scheduler, dois -> retrieveBatch(dois, true));
+        journalCollector = new RequestCollector<>(window, collectSize, scheduler, dois -> retrieveBatch(dois, false));
+    }
+
+    /**
+     * get the Crossref works object for a doi, from the cache or the disk store if we have a current copy,
+     * otherwise from Crossref, keeping only the journal fields of a record fetched from Crossref unless the whole
+     * record is wanted
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the whole record is wanted
+     * @return the works object, as for {@link #retrieve(String, boolean)}
+     */
+    JsonObject metadata(String doi, boolean full) {
+        JsonObject xrefJsonObject = cached(doi, full);
+        if (xrefJsonObject != null) {
+            return xrefJsonObject;
+        }
+        xrefJsonObject = collector(full) != null ? collectAsync(doi, full).join() : retrieve(doi, full);
+        keep(doi, xrefJsonObject);
+        return xrefJsonObject != null ? xrefJsonObject : stale(doi, full);
+    }
+
+    /**
+     * get the Crossref works object for a doi as for {@link #metadata(String, boolean)}, but without blocking on the
+     * call to Crossref
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the whole record is wanted
+     * @return the works object, as for {@link #retrieve(String, boolean)}, when it is available
+     */
+    CompletableFuture<JsonObject> metadataAsync(String doi, boolean full) {
+        JsonObject xrefJsonObject = cached(doi, full);
+        if (xrefJsonObject != null) {
+            return CompletableFuture.completedFuture(xrefJsonObject);
+        }
+        return collectAsync(doi, full).thenApply(works -> {
+            keep(doi, works);
+            return works != null ? works : stale(doi, full);
+        });
+    }
+
+    /**
+     * get the Crossref works objects for several dois, as for {@link #metadataAsync(String, boolean)}. The dois we
+     * have no current copy of are fetched together, as many at a time as the bulk size allows, and any Crossref does
+     * not return that way (including any it does not know) are then fetched one at a time.
+     *
+     * @param dois - the verified dois
+     * @param full - true if the whole records are wanted
+     * @return the works object for each doi, keyed by normalized doi, when it is available
+     */
+    Map<String, CompletableFuture<JsonObject>> metadataBulkAsync(List<String> dois, boolean full) {
+        Map<String, CompletableFuture<JsonObject>> works = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String doi : dois) {
+            String key = normalize(doi);
+            if (works.containsKey(key)) {
+                continue;
+            }
+            JsonObject xrefJsonObject = cached(doi, full);
+            if (xrefJsonObject != null) {
+                works.put(key, CompletableFuture.completedFuture(xrefJsonObject));
+            } else if (bulkSize > 1) {
+                works.put(key, new CompletableFuture<>());
+                misses.add(doi);
+            } else {
+                works.put(key, metadataAsync(doi, full));
+            }
+        }
+
+        for (int i = 0; i < misses.size(); i += bulkSize) {
+            List<String> chunk = misses.subList(i, Math.min(i + bulkSize, misses.size()));
+            Map<String, CompletableFuture<JsonObject>> retrieved = retrieveBatch(chunk, full);
+            for (String doi : chunk) {
+                retrieved.get(normalize(doi)).whenComplete((xrefJsonObject, e) -> {
+                    CompletableFuture<JsonObject> pending = works.get(normalize(doi));
+                    if (e != null) {
+                        pending.completeExceptionally(e);
+                        return;
+                    }
+                    keep(doi, xrefJsonObject);
+                    pending.complete(xrefJsonObject != null ? xrefJsonObject : stale(doi, full));
+                });
+            }
+        }
+        return works;
+    }
+
+    /**
+     * look for a current copy of the Crossref works object for a doi in the cache, then the disk store. A journal
+     * record will do unless the whole record is wanted.
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the whole record is wanted
+     * @return the works object, or null if we have no suitable copy
+     */
+    JsonObject cached(String doi, boolean full) {
+        JsonObject xrefJsonObject = cache.get(doi);
+        if (xrefJsonObject != null && (!full || !isJournalRecord(xrefJsonObject))) {
+            LOG.debug("Using cached Crossref record for " + doi);
+            return xrefJsonObject;
+        }
+        if (store != null && (xrefJsonObject = store.get(doi)) != null) {
+            LOG.debug("Using stored Crossref record for " + doi);
+            cache.put(doi, xrefJsonObject);
+            return xrefJsonObject;
+        }
+        return null;
+    }
+
+    /**
+     * how long past its expiry a works object we returned for a doi is. A stale record is refreshed in the
+     * background, once Crossref may be reached again.
+     *
+     * @param doi   - the verified doi
+     * @param works - the works object
+     * @return the staleness, in ms, or -1 if the works object is current
+     */
+    long staleness(String doi, JsonObject works) {
+        long staleness = cache.staleness(doi, works);
+        if (staleness >= 0) {
+            refreshLater(doi, !isJournalRecord(works));
+        }
+        return staleness;
+    }
+
+    /**
+     * @return true if calls to Crossref are being refused, because it has been failing
+     */
+    boolean isUnavailable() {
+        return breaker != null && breaker.isOpen();
+    }
+
+    /**
+     * @return the most DOIs looked up with one call
+     */
+    int bulkSize() {
+        return bulkSize;
+    }
+
+    /**
+     * consult crossref for the works object for a doi, in a bulk call with other lookups if they are being
+     * collected
+     *
+     * @param doi  - the verified doi
+     * @param full - true to keep the whole record; false to keep only the journal fields
+     * @return the works object, as for {@link #retrieveAsync(String, boolean)}
+     */
+    private CompletableFuture<JsonObject> collectAsync(String doi, boolean full) {
+        RequestCollector<String, JsonObject> collector = collector(full);
+        return collector != null ? collector.submit(normalize(doi)) : retrieveAsync(doi, full);
+    }
+
+    /**
+     * @return the collector for Crossref lookups, or null if they are not being collected
+     */
+    private RequestCollector<String, JsonObject> collector(boolean full) {
+        return full ? collector : journalCollector;
+    }
+
+    /**
+     * fall back on an expired copy of the Crossref works object for a doi, when we could not get one from Crossref
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the whole record is wanted
+     * @return the expired works object, or null if we have no suitable copy
+     */
+    private JsonObject stale(String doi, boolean full) {
+        JsonObject stale = cache.getStale(doi);
+        if (stale == null || (full && isJournalRecord(stale))) {
+            return null;
+        }
+        LOG.info("Could not get a current Crossref record for " + doi + "; using a stale one");
+        return stale;
+    }
+
+    /**
+     * refresh a stale Crossref record in the background, once Crossref may be reached again, and keep trying for as
+     * long as we would otherwise keep serving the stale record
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the whole record is wanted
+     */
+    private void refreshLater(String doi, boolean full) {
+        String key = normalize(doi);
+        if (!refreshing.add(key)) {
+            return;
+        }
+        long delay = Math.max(breaker == null ? 0 : breaker.getRetryDelay(), 1000);
+        try {
+            scheduler.schedule(() -> retrieveAsync(doi, full).whenComplete((works, e) -> {
+                refreshing.remove(key);
+                if (works != null && (works.getJsonString("error") == null || CrossrefCache.isNotFound(works))) {
+                    LOG.info("Refreshed stale Crossref record for " + doi);
+                    keep(doi, works);
+                } else if (cache.getStale(doi) != null) {
+                    refreshLater(doi, full);
+                }
+            }), delay, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * keep a works object fetched from Crossref in the cache and, if it is a whole record, the disk store
+     *
+     * @param doi   - the verified doi
+     * @param works - the works object
+     */
+    private void keep(String doi, JsonObject works) {
+        cache.put(doi, works);
+        if (store != null && works != null && !isJournalRecord(works)) {
+            store.put(doi, works);
+        }
+    }
+
+    /**
+     * a journal record has a message, but not the rest of the record
+     */
+    private static boolean isJournalRecord(JsonObject works) {
+        return works.containsKey(CrossrefReader.MESSAGE) && !CrossrefReader.isFull(works);
+    }
+
+    /**
+     * consult crossref to get a works object for a supplied doi, keeping either the whole record or just the
+     * journal fields. A call which fails in a way that may not happen again is retried after a backoff, as the retry
+     * budget allows.
+     *
+     * @param doi  - the supplied doi string, prefix trimmed if necessary
+     * @param full - true to keep the whole record; false to keep only the journal fields
+     * @return the works object, or an error object if Crossref reported an error; null if IO exception
+     */
+    JsonObject retrieve(String doi, boolean full) {
+        if (retryBudget != null) {
+            retryBudget.onCall();
+        }
+        for (int attempt = 0; ; attempt++) {
+            Outcome outcome = call(doi, request(doi), r -> readResponse(r, full));
+            if (!outcome.retryable || attempt >= retries || retryBudget == null || !retryBudget.tryRetry()) {
+                return outcome.works;
+            }
+            long backoff = backoff(attempt);
+            LOG.info("Retrying Crossref call for " + doi + " in " + backoff + " ms");
+            try {
+                MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return outcome.works;
+            }
+        }
+    }
+
+    /**
+     * consult crossref to get a works object for a supplied doi, as for {@link #retrieve(String, boolean)}, using
+     * an asynchronous call
+     *
+     * @param doi  - the supplied doi string, prefix trimmed if necessary
+     * @param full - true to keep the whole record; false to keep only the journal fields
+     * @return the works object, as for {@link #retrieve(String, boolean)}, when it is available
+     */
+    CompletableFuture<JsonObject> retrieveAsync(String doi, boolean full) {
+        if (retryBudget != null) {
+            retryBudget.onCall();
+        }
+        return attemptAsync(doi, request(doi), r -> readResponse(r, full), 0).thenApply(outcome -> outcome.works);
+    }
+
+    /**
+     * consult crossref for the works objects for several dois, with a single call to the works filter API, then
+     * looking up any it did not return one at a time
+     *
+     * @param dois - the verified dois
+     * @param full - true to keep the whole records; false to keep only the journal fields
+     * @return the works object for each doi, keyed by normalized doi, as for
+     * {@link #retrieveAsync(String, boolean)}
+     */
+    Map<String, CompletableFuture<JsonObject>> retrieveBatch(List<String> dois, boolean full) {
+        Map<String, CompletableFuture<JsonObject>> works = new HashMap<>();
+        if (dois.size() == 1) {
+            works.put(normalize(dois.get(0)), retrieveAsync(dois.get(0), full));
+            return works;
+        }
+        CompletableFuture<Map<String, JsonObject>> retrieved = retrieveBulkAsync(dois, full);
+        for (String doi : dois) {
+            works.put(normalize(doi), retrieved.thenCompose(found -> {
+                JsonObject xrefJsonObject = found == null ? null : found.get(normalize(doi));
+                return xrefJsonObject != null ? CompletableFuture.completedFuture(xrefJsonObject) :
+                       retrieveAsync(doi, full);
+            }));
+        }
+        return works;
+    }
+
+    /**
+     * consult crossref to get the works objects for several dois with a single call to the works filter API
+     *
+     * @param dois - the verified dois
+     * @param full - true to keep the whole records; false to keep only the journal fields
+     * @return the works objects Crossref returned, keyed by normalized doi, or null if the call failed, when it is
+     * available
+     */
+    CompletableFuture<Map<String, JsonObject>> retrieveBulkAsync(List<String> dois, boolean full) {
+        if (retryBudget != null) {
+            retryBudget.onCall();
+        }
+        return attemptAsync(dois.size() + " DOIs", bulkRequest(dois, full), this::readList, 0)
+            .thenApply(outcome -> outcome.works == null ? null : splitList(outcome.works, full));
+    }
+
+    /**
+     * make an attempt at an asynchronous Crossref call, retrying after a backoff if it fails in a way that may not
+     * happen again, and the retry budget allows it. The first attempt may be hedged.
+     *
+     * @param what    - what the call is for, for logging
+     * @param request - the request to make
+     * @param reader  - reads the works object from the response
+     * @param attempt - the number of attempts made so far
+     * @return the outcome of the last attempt, when it is available
+     */
+    private CompletableFuture<Outcome> attemptAsync(String what, Request request, Reader reader, int attempt) {
+        CompletableFuture<Outcome> outcome = attempt == 0 && hedging ? hedgedCall(what, request, reader) :
+                                             callAsync(what, request, reader);
+        return outcome.thenCompose(o -> {
+            if (!o.retryable || attempt >= retries || retryBudget == null || !retryBudget.tryRetry()) {
+                return CompletableFuture.completedFuture(o);
+            }
+            long backoff = backoff(attempt);
+            LOG.info("Retrying Crossref call for " + what + " in " + backoff + " ms");
+            CompletableFuture<Outcome> retried = new CompletableFuture<>();
+            try {
+                scheduler.schedule(() -> attemptAsync(what, request, reader, attempt + 1).whenComplete((r, e) -> {
+                    if (e != null) {
+                        retried.completeExceptionally(e);
+                    } else {
+                        retried.complete(r);
+                    }
+                }), backoff, MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.completedFuture(o);
+            }
+            return retried;
+        });
+    }
+
+    /**
+     * Make an asynchronous Crossref call, and if it has not come back by the time most calls have, a second one.
+     * Whichever gives us an answer first wins, and the other is cancelled. The delay before the second call is the
+     * 95th percentile of recent call latencies, and the second call comes out of the retry budget.
+     *
+     * @param what    - what the call is for, for logging
+     * @param request - the request to make
+     * @param reader  - reads the works object from the response
+     * @return the outcome of the winning call, when it is available
+     */
+    private CompletableFuture<Outcome> hedgedCall(String what, Request request, Reader reader) {
+        CompletableFuture<Outcome> first = callAsync(what, request, reader);
+        long hedgeDelay = latency.percentile(95);
+        if (hedgeDelay < 0) {
+            return first;
+        }
+
+        CompletableFuture<Outcome> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        BiConsumer<Outcome, Throwable> settle = (o, e) -> {
+            boolean last = pending.decrementAndGet() == 0;
+            //an answer wins outright; a failure only if there is nothing else to wait for
+            if (e == null && !o.retryable) {
+                winner.complete(o);
+            } else if (last && e != null) {
+                winner.completeExceptionally(e);
+            } else if (last) {
+                winner.complete(o);
+            }
+        };
+        first.whenComplete(settle);
+
+        try {
+            scheduler.schedule(() -> {
+                if (winner.isDone() || retryBudget == null || !retryBudget.tryHedge()) {
+                    return;
+                }
+                pending.incrementAndGet();
+                LOG.debug("Hedging slow Crossref call for " + what);
+                CompletableFuture<Outcome> second = callAsync(what, request, reader);
+                second.whenComplete(settle);
+                //cancelled at once if the first call has settled since we looked
+                winner.whenComplete((o, e) -> second.cancel(false));
+            }, hedgeDelay, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return first;
+        }
+        winner.whenComplete((o, e) -> first.cancel(false));
+        return winner;
+    }
+
+    /**
+     * make a single asynchronous Crossref call, once the rate limit and circuit breaker allow. Cancelling the
+     * returned future cancels the call.
+     *
+     * @param what    - what the call is for, for logging
+     * @param request - the request to make
+     * @param reader  - reads the works object from the response
+     * @return the outcome of the call, when it is available
+     */
+    private CompletableFuture<Outcome> callAsync(String what, Request request, Reader reader) {
+        CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        long delay = limiter == null ? 0 : limiter.reserve();
+        if (delay < 0) {
+            LOG.warn("Not calling Crossref for " + what + "; the rate limit would keep it waiting too long");
+            outcome.complete(Outcome.REFUSED);
+            return outcome;
+        }
+
+        AtomicReference<Call> inFlight = new AtomicReference<>();
+        Runnable call = () -> {
+            if (outcome.isDone()) {
+                return;
+            }
+            if (breaker != null && !breaker.allowRequest()) {
+                outcome.complete(Outcome.REFUSED);
+                return;
+            }
+            long started = System.currentTimeMillis();
+            Call xrefCall = client.newCall(request);
+            inFlight.set(xrefCall);
+            xrefCall.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    //a call we cancelled says nothing about Crossref
+                    if (!call.isCanceled()) {
+                        record(null, started);
+                    }
+                    outcome.complete(Outcome.FAILED);
+                }
+
+                @Override
+                public void onResponse(Call call, Response okHttpResponse) {
+                    try (Response r = okHttpResponse) {
+                        boolean failed = record(r, started);
+                        outcome.complete(new Outcome(reader.read(r), failed));
+                    } catch (IOException e) {
+                        outcome.complete(Outcome.FAILED);
+                    } catch (RuntimeException e) {
+                        outcome.completeExceptionally(e);
+                    }
+                }
+            });
+        };
+        outcome.whenComplete((o, e) -> {
+            Call xrefCall = inFlight.get();
+            if (outcome.isCancelled() && xrefCall != null) {
+                xrefCall.cancel();
+            }
+        });
+        //wait for our turn without holding a thread
+        if (delay == 0) {
+            call.run();
+        } else {
+            scheduler.schedule(call, delay, MILLISECONDS);
+        }
+        return outcome;
+    }
+
+    /**
+     * make a single Crossref call, once the rate limit and circuit breaker allow
+     *
+     * @param what    - what the call is for, for logging
+     * @param request - the request to make
+     * @param reader  - reads the works object from the response
+     * @return the outcome of the call
+     */
+    private Outcome call(String what, Request request, Reader reader) {
+        long delay = limiter == null ? 0 : limiter.reserve();
+        if (delay < 0) {
+            LOG.warn("Not calling Crossref for " + what + "; the rate limit would keep it waiting too long");
+            return Outcome.REFUSED;
+        }
+        try {
+            MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.REFUSED;
+        }
+
+        if (breaker != null && !breaker.allowRequest()) {
+            return Outcome.REFUSED;
+        }
+        long started = System.currentTimeMillis();
+        Call call = client.newCall(request);
+        try (Response okHttpResponse = call.execute()) {
+            boolean failed = record(okHttpResponse, started);
+            return new Outcome(reader.read(okHttpResponse), failed);
+        } catch (IOException e) {
+            record(null, started);
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * how long to wait before retrying a Crossref call: an exponential backoff, with full jitter so that the retries
+     * of calls which failed together are spread out
+     *
+     * @param attempt - the number of attempts made so far, less one
+     * @return the backoff, in ms
+     */
+    private long backoff(int attempt) {
+        long ceiling = Math.min(maxBackoff, baseBackoff << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * tell the rate limiter, circuit breaker and latency tracker how a call to Crossref went
+     *
+     * @param response - the response, or null if the call failed without one
+     * @param started  - when the call was made
+     * @return true if the call failed in a way which may not happen again
+     */
+    private boolean record(Response response, long started) {
+        boolean failed = response == null || response.code() >= 500 || response.code() == 429;
+        if (response != null && limiter != null) {
+            limiter.update(response);
+        }
+        if (breaker != null) {
+            if (failed) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+        }
+        if (!failed) {
+            latency.record(System.currentTimeMillis() - started);
+        }
+        return failed;
+    }
+
+    /**
+     * reads what we want from a Crossref response
+     */
+    private interface Reader {
+        JsonObject read(Response response) throws IOException;
+    }
+
+    /**
+     * the outcome of a single Crossref call
+     */
+    private static final class Outcome {
+        //the call was not made, because of the rate limit or circuit breaker
+        static final Outcome REFUSED = new Outcome(null, false);
+        //the call failed without a response
+        static final Outcome FAILED = new Outcome(null, true);
+
+        //the works object, or error object, or null if we have neither
+        private final JsonObject works;
+        //whether the call is worth retrying
+        private final boolean retryable;
+
+        Outcome(JsonObject works, boolean retryable) {
+            this.works = works;
+            this.retryable = retryable;
+        }
+    }
+
+    /**
+     * build the request for the Crossref works object for a doi
+     *
+     * @param doi - the supplied doi string, prefix trimmed if necessary
+     * @return the request
+     */
+    private Request request(String doi) {
+        String agent = System.getenv("PASS_DOI_SERVICE_MAILTO") != null ? System.getenv(
+            "PASS_DOI_SERVICE_MAILTO") : MAILTO;
+
+        HttpUrl.Builder urlBuilder = HttpUrl.parse(BASE_URL + VERSION + BASIC_PREFIX + doi).newBuilder();
+        String url = urlBuilder.build().toString();
+        return new Request.Builder()
+            .url(url)
+            .addHeader("User-Agent", agent)
+            .build();
+    }
+
+    /**
+     * build the request for the Crossref works objects for several dois, using the works filter API. Unless the whole
+     * records are wanted, we have Crossref send only the journal fields.
+     *
+     * @param dois - the verified dois, which cannot contain the comma that separates the filters
+     * @param full - true to get the whole records
+     * @return the request
+     */
+    private Request bulkRequest(List<String> dois, boolean full) {
+        String agent = System.getenv("PASS_DOI_SERVICE_MAILTO") != null ? System.getenv(
+            "PASS_DOI_SERVICE_MAILTO") : MAILTO;
+
+        HttpUrl.Builder urlBuilder = HttpUrl.parse(BASE_URL + VERSION + BULK_PREFIX).newBuilder()
+                                            .addQueryParameter("filter", dois.stream().map(doi -> "doi:" + doi)
+                                                                             .collect(Collectors.joining(",")))
+                                            .addQueryParameter("rows", Integer.toString(dois.size()));
+        if (!full) {
+            Set<String> select = new TreeSet<>(CrossrefReader.JOURNAL_FIELDS);
+            select.add("DOI");
+            urlBuilder.addQueryParameter("select", String.join(",", select));
+        }
+        return new Request.Builder()
+            .url(urlBuilder.build())
+            .addHeader("User-Agent", agent)
+            .build();
+    }
+
+    /**
+     * read a list of works from a Crossref response
+     *
+     * @param okHttpResponse - the response from Crossref
+     * @return the list, or null if Crossref did not send one
+     * @throws IOException if the response could not be read
+     */
+    private JsonObject readList(Response okHttpResponse) throws IOException {
+        if (!okHttpResponse.isSuccessful()) {
+            return null;
+        }
+        try (InputStream body = okHttpResponse.body().byteStream();
+             JsonReader reader = Json.createReader(body)) {
+            return reader.readObject();
+        } catch (JsonParsingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * split a list of works from Crossref into works objects of the form we get for a single doi
+     *
+     * @param list - the list from Crossref
+     * @param full - true if the list has whole records; false if it has only the journal fields
+     * @return the works objects, keyed by normalized doi
+     */
+    private Map<String, JsonObject> splitList(JsonObject list, boolean full) {
+        Map<String, JsonObject> works = new HashMap<>();
+        JsonObject message = list.getJsonObject(CrossrefReader.MESSAGE);
+        JsonArray items = message == null ? null : message.getJsonArray("items");
+        if (items == null) {
+            return works;
+        }
+        for (JsonValue item : items) {
+            JsonObject work = item.asJsonObject();
+            if (work.getJsonString("DOI") == null) {
+                continue;
+            }
+            JsonObjectBuilder single = Json.createObjectBuilder();
+            if (full) {
+                single.add("status", "ok").add(CrossrefReader.MESSAGE_TYPE, "work");
+            }
+            works.put(normalize(work.getString("DOI")), single.add(CrossrefReader.MESSAGE, work).build());
+        }
+        return works;
+    }
+
+    /**
+     * read a works object from a Crossref response, parsing the body as it streams in rather than reading it into
+     * a string first
+     *
+     * @param okHttpResponse - the response from Crossref
+     * @param full           - true to keep the whole record; false to keep only the journal fields
+     * @return the works object, or an error object, as for {@link CrossrefReader#read(InputStream, boolean)}
+     * @throws IOException if the response could not be read
+     */
+    private JsonObject readResponse(Response okHttpResponse, boolean full) throws IOException {
+        try (InputStream body = okHttpResponse.body().byteStream()) {
+            return CrossrefReader.read(body, full);
+        }
+    }
+
+    /**
+     * add the state of the cache, the disk store, and the limits on our calls to the service counters
+     *
+     * @param stats - the service counters
+     */
+    void addStats(JsonObjectBuilder stats) {
+        stats.add("crossref-cache", cache.stats());
+        if (limiter != null) {
+            stats.add("crossref-rate-limit", limiter.stats());
+        }
+        if (breaker != null) {
+            stats.add("crossref-circuit-breaker", breaker.stats());
+        }
+        if (retryBudget != null) {
+            stats.add("crossref-retries", retryBudget.stats());
+        }
+        if (collector != null) {
+            stats.add("crossref-collector", collector.stats());
+            stats.add("crossref-journal-collector", journalCollector.stats());
+        }
+        if (store != null) {
+            stats.add("crossref-store", Json.createObjectBuilder()
+                                            .add("size", store.size())
+                                            .add("warm", store.isWarm()));
+        }
+    }
+
+    /**
+     * close the disk store, if there is one. The scheduler belongs to the caller.
+     *
+     * @throws IOException if the store could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A token bucket limiting the rate of our calls to Crossref. Crossref tells us its limit on each response, in the
+ * {@code X-Rate-Limit-Limit} and {@code X-Rate-Limit-Interval} headers, and the bucket adjusts to what it is told;
+ * a 429 response empties the bucket for as long as Crossref asks us to wait. A caller reserves a token and is told
+ * how long to wait for it. Reservations are handed out in turn, so callers are served in the order they ask, and a
+ * caller who would have to wait longer than the configured maximum is refused rather than queued.
+ */
+public class CrossrefRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CrossrefRateLimiter.class);
+
+    static final String LIMIT_HEADER = "X-Rate-Limit-Limit";
+    static final String INTERVAL_HEADER = "X-Rate-Limit-Interval";
+
+    private final long maxWait;
+    private final LongSupplier clock;
+
+    //guarded by this
+    private double capacity;
+    private double tokensPerMs;
+    private double tokens;
+    private long refilled;
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitTime = new LongAdder();
+    private final LongAccumulator longestWait = new LongAccumulator(Math::max, 0);
+    private final LongAdder refusals = new LongAdder();
+
+    /**
+     * @param limit    - the number of calls allowed per interval, until Crossref tells us otherwise
+     * @param interval - the interval, in ms
+     * @param maxWait  - the longest a caller may wait for a token, in ms
+     */
+    public CrossrefRateLimiter(int limit, long interval, long maxWait) {
+        this(limit, interval, maxWait, System::currentTimeMillis);
+    }
+
+    CrossrefRateLimiter(int limit, long interval, long maxWait, LongSupplier clock) {
+        this.maxWait = maxWait;
+        this.clock = clock;
+        this.capacity = limit;
+        this.tokensPerMs = (double) limit / interval;
+        this.tokens = limit;
+        this.refilled = clock.getAsLong();
+    }
+
+    /**
+     * reserve a token for a call to Crossref
+     *
+     * @return how long to wait before making the call, in ms; or -1 if the wait would be too long, in which case no
+     * token is reserved
+     */
+    public long reserve() {
+        long wait;
+        synchronized (this) {
+            refill();
+            wait = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerMs);
+            if (wait > maxWait) {
+                refusals.increment();
+                return -1;
+            }
+            tokens -= 1;
+        }
+        if (wait > 0) {
+            waits.increment();
+            waitTime.add(wait);
+            longestWait.accumulate(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * take account of what a Crossref response tells us about the rate limit
+     *
+     * @param response - the response
+     */
+    public void update(Response response) {
+        if (response.code() == 429) {
+            long retryAfter = parseInterval(response.header("Retry-After"), "s");
+            throttled(retryAfter > 0 ? retryAfter : 1000);
+        }
+        String limit = response.header(LIMIT_HEADER);
+        long interval = parseInterval(response.header(INTERVAL_HEADER), "s");
+        if (limit == null || interval <= 0) {
+            return;
+        }
+        try {
+            setLimit(Integer.parseInt(limit.trim()), interval);
+        } catch (NumberFormatException e) {
+            LOG.debug("Ignoring rate limit " + limit + " from Crossref");
+        }
+    }
+
+    /**
+     * change the rate limit
+     *
+     * @param limit    - the number of calls allowed per interval
+     * @param interval - the interval, in ms
+     */
+    synchronized void setLimit(int limit, long interval) {
+        if (limit <= 0 || (capacity == limit && tokensPerMs == (double) limit / interval)) {
+            return;
+        }
+        refill();
+        LOG.info("Crossref rate limit is now " + limit + " calls per " + interval + " ms");
+        capacity = limit;
+        tokensPerMs = (double) limit / interval;
+        tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * hold off all calls for a while, as Crossref has asked
+     *
+     * @param pause - how long to hold off, in ms
+     */
+    synchronized void throttled(long pause) {
+        refill();
+        LOG.warn("Throttled by Crossref; holding off calls for " + pause + " ms");
+        //the next caller's token will come due once the pause is over
+        tokens = Math.min(tokens, 1 - pause * tokensPerMs);
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerMs);
+        refilled = now;
+    }
+
+    /**
+     * parse an interval such as {@code 1s} or {@code 500ms}; a bare number is taken to be in the given unit
+     */
+    static long parseInterval(String value, String defaultUnit) {
+        if (value == null) {
+            return -1;
+        }
+        String trimmed = value.trim().toLowerCase(Locale.ROOT);
+        int unitStart = 0;
+        while (unitStart < trimmed.length() && Character.isDigit(trimmed.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == 0) {
+            return -1;
+        }
+        long amount = Long.parseLong(trimmed.substring(0, unitStart));
+        String unit = unitStart == trimmed.length() ? defaultUnit : trimmed.substring(unitStart).trim();
+        switch (unit) {
+            case "ms":
+                return amount;
+            case "s":
+                return amount * 1000;
+            case "m":
+                return amount * 60000;
+            case "h":
+                return amount * 3600000;
+            default:
+                return -1;
+        }
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getWaitTime() {
+        return waitTime.sum();
+    }
+
+    public long getRefusals() {
+        return refusals.sum();
+    }
+
+    /**
+     * @return the limiter counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        double callsPerSecond;
+        synchronized (this) {
+            callsPerSecond = tokensPerMs * 1000;
+        }
+        return Json.createObjectBuilder()
+                   .add("calls-per-second", callsPerSecond)
+                   .add("waits", getWaits())
+                   .add("wait-ms", getWaitTime())
+                   .add("longest-wait-ms", longestWait.get())
+                   .add("refusals", getRefusals())
+                   .build();
+    }
+}
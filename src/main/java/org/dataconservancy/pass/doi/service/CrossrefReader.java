@@ -0,0 +1,174 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+
+/**
+ * Reads a Crossref works response in a single streaming pass over the response body. A works record for an article
+ * with a long reference list can run to hundreds of KB, while building a PASS journal needs only a few fields of it,
+ * so unless the whole record is wanted we keep just the journal fields and skip over everything else without
+ * building it. A record read this way is a "journal record": it has the same shape as the full one, but its
+ * {@code message} carries only the fields in {@link #JOURNAL_FIELDS}.
+ */
+public class CrossrefReader {
+
+    static final String MESSAGE = "message";
+    static final String MESSAGE_TYPE = "message-type";
+
+    /**
+     * the fields of the {@code message} object kept in a journal record
+     */
+    static final Set<String> JOURNAL_FIELDS = new HashSet<>(Arrays.asList("container-title", "issn-type", "ISSN",
+                                                                          "indexed"));
+
+    private static final int PEEK_LIMIT = 1024;
+
+    private CrossrefReader() {
+    }
+
+    /**
+     * Read a works object from a Crossref response body. Crossref reports errors such as a missing resource in plain
+     * text, so a body which is not JSON is returned as an error object.
+     *
+     * @param body - the response body
+     * @param full - true to keep the whole record; false to keep only the journal fields
+     * @return the works object, or an error object
+     * @throws IOException if the body could not be read
+     */
+    public static JsonObject read(InputStream body, boolean full) throws IOException {
+        InputStream in = new BufferedInputStream(body);
+        if (!startsWithObject(in)) {
+            return error(new String(readAll(in), UTF_8).trim());
+        }
+
+        try (JsonParser parser = Json.createParser(in)) {
+            parser.next();
+            if (full) {
+                return parser.getObject();
+            }
+            JsonObjectBuilder works = Json.createObjectBuilder();
+            while (parser.next() == JsonParser.Event.KEY_NAME) {
+                String key = parser.getString();
+                JsonParser.Event event = parser.next();
+                if (MESSAGE.equals(key) && event == JsonParser.Event.START_OBJECT) {
+                    works.add(MESSAGE, readJournalFields(parser));
+                } else {
+                    skip(parser, event);
+                }
+            }
+            return works.build();
+        } catch (JsonParsingException e) {
+            return error("Could not parse the Crossref response: " + e.getMessage());
+        } catch (JsonException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * whether a works object is a whole Crossref record, rather than a journal record or an error. Crossref always
+     * sends a message type with a record, which a journal record leaves out.
+     *
+     * @param works - the works object
+     * @return true if the works object is a whole record
+     */
+    static boolean isFull(JsonObject works) {
+        return works.containsKey(MESSAGE_TYPE);
+    }
+
+    /**
+     * read the journal fields of the message object, with the parser positioned at its start
+     */
+    private static JsonObject readJournalFields(JsonParser parser) {
+        JsonObjectBuilder fields = Json.createObjectBuilder();
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            String key = parser.getString();
+            JsonParser.Event event = parser.next();
+            if (JOURNAL_FIELDS.contains(key)) {
+                fields.add(key, parser.getValue());
+            } else {
+                skip(parser, event);
+            }
+        }
+        return fields.build();
+    }
+
+    /**
+     * move past a value we do not want, without building it
+     */
+    private static void skip(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (event == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    /**
+     * look ahead, past any white space, for the start of a JSON object, leaving the stream where it was
+     */
+    private static boolean startsWithObject(InputStream in) throws IOException {
+        in.mark(PEEK_LIMIT);
+        try {
+            for (int i = 0; i < PEEK_LIMIT; i++) {
+                int c = in.read();
+                if (c == -1) {
+                    return false;
+                }
+                if (!Character.isWhitespace(c)) {
+                    return c == '{';
+                }
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static JsonObject error(String message) {
+        return Json.createObjectBuilder()
+                   .add("error", message)
+                   .build();
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A disk-backed store of Crossref works objects, so that a restarted service does not have to go back to Crossref
+ * for everything it has already seen. Works objects are appended to a log file, one record per line, of the form
+ * {@code doi <tab> time written <tab> works json}; an in-memory index maps each doi to the location of its latest
+ * record.
+ *
+ * <p>The index is built by {@link #warm(boolean)}, which is meant to be run in the background after startup; until
+ * it has finished every lookup misses. Warming can optionally compact the log, rewriting it with only the latest,
+ * unexpired record for each doi.</p>
+ */
+public class CrossrefStore implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CrossrefStore.class);
+
+    static final String LOG_FILE = "crossref-works.log";
+
+    private final Path file;
+    private final long ttl;
+    private final LongSupplier clock;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private volatile boolean warm;
+    private volatile boolean compacting;
+
+    /**
+     * @param directory - the directory holding the log file; created if absent
+     * @param ttl       - how long a stored works object is good for, in ms
+     * @throws IOException if the log file cannot be opened
+     */
+    public CrossrefStore(Path directory, long ttl) throws IOException {
+        this(directory, ttl, System::currentTimeMillis);
+    }
+
+    CrossrefStore(Path directory, long ttl, LongSupplier clock) throws IOException {
+        Files.createDirectories(directory);
+        this.file = directory.resolve(LOG_FILE);
+        this.ttl = ttl;
+        this.clock = clock;
+        this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+        terminateTornRecord();
+    }
+
+    /**
+     * build the index from the log, optionally compacting the log first
+     *
+     * @param compact - whether to rewrite the log without expired or superseded records
+     */
+    public void warm(boolean compact) {
+        try {
+            long start = clock.getAsLong();
+            scan();
+            if (compact) {
+                compact();
+            }
+            LOG.info("Crossref store warmed with " + index.size() + " records in " +
+                     (clock.getAsLong() - start) + " ms");
+        } catch (IOException e) {
+            LOG.error("Could not read the Crossref store at " + file + "; continuing without it", e);
+            index.clear();
+        } finally {
+            warm = true;
+        }
+    }
+
+    /**
+     * look up the stored works object for a doi
+     *
+     * @param doi - the verified doi
+     * @return the works object, or null if we have no current record, or have not finished warming
+     */
+    public JsonObject get(String doi) {
+        if (!warm) {
+            return null;
+        }
+        String key = PassDoiServlet.normalize(doi);
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        if (location.written + ttl <= clock.getAsLong()) {
+            index.remove(key, location);
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        lock.readLock().lock();
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read the stored Crossref record for " + doi, e);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try (JsonReader reader = Json.createReader(new StringReader(new String(buffer.array(), UTF_8)))) {
+            return reader.readObject();
+        } catch (JsonException e) {
+            LOG.warn("Dropping unreadable stored Crossref record for " + doi);
+            index.remove(key, location);
+            return null;
+        }
+    }
+
+    /**
+     * append a works object to the store. If the store is busy compacting we skip the write; the cost is only that
+     * the record may be fetched from Crossref again after a restart.
+     *
+     * @param doi   - the verified doi
+     * @param works - the works object from Crossref; error responses are not stored
+     */
+    public void put(String doi, JsonObject works) {
+        if (works == null || works.getJsonString("error") != null) {
+            return;
+        }
+        String key = PassDoiServlet.normalize(doi);
+        long written = clock.getAsLong();
+        byte[] prefix = (key + "\t" + written + "\t").getBytes(UTF_8);
+        byte[] json = works.toString().getBytes(UTF_8);
+
+        if (compacting) {
+            LOG.debug("Crossref store is compacting, not storing " + doi);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            long offset = channel.size();
+            ByteBuffer record = ByteBuffer.allocate(prefix.length + json.length + 1);
+            record.put(prefix).put(json).put((byte) '\n').flip();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            index.put(key, new Location(offset + prefix.length, json.length, written));
+        } catch (IOException e) {
+            LOG.warn("Could not store the Crossref record for " + doi, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * rewrite the log with only the latest unexpired record for each doi, and switch to it
+     *
+     * @throws IOException if the log could not be rewritten
+     */
+    void compact() throws IOException {
+        Path compacted = file.resolveSibling(LOG_FILE + ".compact");
+        compacting = true;
+        lock.writeLock().lock();
+        try {
+            long now = clock.getAsLong();
+            int dropped = 0;
+            try (FileChannel out = FileChannel.open(compacted, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    Location location = entry.getValue();
+                    if (location.written + ttl <= now) {
+                        index.remove(entry.getKey());
+                        dropped++;
+                        continue;
+                    }
+                    byte[] prefix = (entry.getKey() + "\t" + location.written + "\t").getBytes(UTF_8);
+                    long offset = out.position();
+                    out.write(ByteBuffer.wrap(prefix));
+                    channel.transferTo(location.offset, location.length, out);
+                    out.write(ByteBuffer.wrap(new byte[] {'\n'}));
+                    entry.setValue(new Location(offset + prefix.length, location.length, location.written));
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(compacted, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            channel = FileChannel.open(file, CREATE, READ, WRITE);
+            LOG.info("Compacted Crossref store, dropping " + dropped + " expired records");
+        } finally {
+            lock.writeLock().unlock();
+            compacting = false;
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * read through the log, indexing the latest unexpired record for each doi
+     *
+     * @throws IOException if the log could not be read
+     */
+    private void scan() throws IOException {
+        long end;
+        lock.readLock().lock();
+        try {
+            end = channel.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        long now = clock.getAsLong();
+
+        // records appended after we start are indexed by put(), so we only need to read up to the current end
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            long position = 0;
+            while (position < end) {
+                long recordStart = position;
+                header.reset();
+                int tabs = 0;
+                int c = 0;
+                while (tabs < 2) {
+                    c = in.read();
+                    if (c < 0 || c == '\n') {
+                        break;
+                    }
+                    position++;
+                    if (c == '\t') {
+                        tabs++;
+                    }
+                    header.write(c);
+                }
+                long jsonStart = position;
+                if (tabs == 2) {
+                    while ((c = in.read()) >= 0 && c != '\n') {
+                        position++;
+                    }
+                }
+                if (c < 0) {
+                    break;
+                }
+                position++;
+                if (tabs < 2) {
+                    LOG.warn("Skipping malformed record at offset " + recordStart + " in " + file);
+                    continue;
+                }
+
+                String[] fields = header.toString("UTF-8").split("\t");
+                long written;
+                try {
+                    written = Long.parseLong(fields[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    LOG.warn("Skipping malformed record at offset " + recordStart + " in " + file);
+                    continue;
+                }
+                if (written + ttl <= now) {
+                    continue;
+                }
+                Location location = new Location(jsonStart, (int) (position - 1 - jsonStart), written);
+                index.merge(fields[0], location, (a, b) -> a.offset > b.offset ? a : b);
+            }
+        }
+    }
+
+    /**
+     * if we crashed part way through appending a record, end it so the next record starts on a line of its own
+     *
+     * @throws IOException if the log could not be read or written
+     */
+    private void terminateTornRecord() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        if (last.get(0) != '\n') {
+            Channels.newOutputStream(channel.position(size)).write('\n');
+        }
+    }
+
+    private static class Location {
+        private final long offset;
+        private final int length;
+        private final long written;
+
+        Location(long offset, int length, long written) {
+            this.offset = offset;
+            this.length = length;
+            this.written = written;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link JournalLocks} held as files in a directory shared by the instances of the service. A lease is a lock file,
+ * created only if it does not already exist, holding a token for the holder and the time the lease lapses; it is
+ * released by deleting the file. A lock file whose lease has lapsed is deleted by the next instance to want it. A lock
+ * file is only deleted under a guard, after checking that it still holds the lease it was meant to, so that an
+ * instance which found a lease lapsed does not delete the lease taken since by another. The journal created under a
+ * key is recorded in a second file, written whole and moved into place.
+ */
+public class FileJournalLocks implements JournalLocks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileJournalLocks.class);
+
+    //how often a waiting instance looks at a lock file again, in ms
+    private static final long POLL = 50;
+
+    private final Path directory;
+    private final long lease;
+    private final long remember;
+    private final LongSupplier clock;
+
+    /**
+     * @param directory - the shared directory; created if absent
+     * @param lease     - how long a lease lasts if it is not released, in ms
+     * @param remember  - how long a created journal is remembered, in ms
+     * @throws IOException if the directory could not be created
+     */
+    public FileJournalLocks(Path directory, long lease, long remember) throws IOException {
+        this(directory, lease, remember, System::currentTimeMillis);
+    }
+
+    /**
+     * @param directory - the shared directory; created if absent
+     * @param lease     - how long a lease lasts if it is not released, in ms
+     * @param remember  - how long a created journal is remembered, in ms
+     * @param clock     - supplies the current time in ms, which should agree across instances
+     * @throws IOException if the directory could not be created
+     */
+    FileJournalLocks(Path directory, long lease, long remember, LongSupplier clock) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.lease = lease;
+        this.remember = remember;
+        this.clock = clock;
+    }
+
+    @Override
+    public Lease acquire(String key, long wait) throws IOException, InterruptedException {
+        String name = fileName(key);
+        Path lock = directory.resolve(name + ".lock");
+        String token = UUID.randomUUID().toString();
+        long deadline = System.nanoTime() + wait * 1_000_000;
+        while (true) {
+            try {
+                Files.write(lock, (token + "\n" + (clock.getAsLong() + lease) + "\n").getBytes(UTF_8), CREATE_NEW,
+                            WRITE);
+                return new FileLease(lock, directory.resolve(name + ".journal"), token);
+            } catch (FileAlreadyExistsException e) {
+                breakIfLapsed(lock);
+            }
+            long remaining = (deadline - System.nanoTime()) / 1_000_000;
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(POLL, remaining));
+        }
+    }
+
+    /**
+     * delete a lock file if its lease has lapsed. A lock file which cannot be read yet, having only just been
+     * created, lapses a lease period after it was last modified.
+     *
+     * @param lock - the lock file
+     * @throws IOException          if the lock file could not be read or deleted
+     * @throws InterruptedException if interrupted while waiting to delete the lock file
+     */
+    private void breakIfLapsed(Path lock) throws IOException, InterruptedException {
+        String token;
+        long lapses;
+        try {
+            List<String> lines = Files.readAllLines(lock, UTF_8);
+            token = lines.isEmpty() ? "" : lines.get(0);
+            lapses = lines.size() > 1 ? Long.parseLong(lines.get(1)) :
+                     Files.getLastModifiedTime(lock).toMillis() + lease;
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (NumberFormatException e) {
+            token = "";
+            lapses = Files.getLastModifiedTime(lock).toMillis() + lease;
+        }
+        if (lapses < clock.getAsLong() && delete(lock, token)) {
+            LOG.warn("Broke the lapsed journal lock " + lock);
+        }
+    }
+
+    /**
+     * delete a lock file if it still holds the lease with the given token. Lock files are only deleted while holding
+     * a guard file, created only if it does not already exist, so that the lease cannot change between being checked
+     * and the file being deleted. A guard file left by an instance which stopped while holding it lapses a lease
+     * period after it was created.
+     *
+     * @param lock  - the lock file
+     * @param token - the token of the lease, or empty for a lock file whose token could not be read
+     * @return true if the lock file was deleted; false if it had already gone, or holds another lease
+     * @throws IOException          if the lock file could not be read or deleted
+     * @throws InterruptedException if interrupted while waiting for the guard
+     */
+    boolean delete(Path lock, String token) throws IOException, InterruptedException {
+        Path guard = directory.resolve(lock.getFileName() + ".guard");
+        while (true) {
+            try {
+                Files.createFile(guard);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                try {
+                    if (Files.getLastModifiedTime(guard).toMillis() + lease < clock.getAsLong()) {
+                        LOG.warn("Breaking the lapsed journal lock guard " + guard);
+                        Files.deleteIfExists(guard);
+                        continue;
+                    }
+                } catch (NoSuchFileException gone) {
+                    continue;
+                }
+            }
+            //the guard is only held while a lease is checked
+            Thread.sleep(1);
+        }
+        try {
+            List<String> lines = Files.readAllLines(lock, UTF_8);
+            if (token.equals(lines.isEmpty() ? "" : lines.get(0))) {
+                Files.delete(lock);
+                return true;
+            }
+            return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(guard);
+        }
+    }
+
+    /**
+     * @param key - a key
+     * @return the name of the files for the key, which is the key itself as far as the file system allows
+     */
+    static String fileName(String key) {
+        try {
+            String name = URLEncoder.encode(key, "UTF-8");
+            if (name.length() <= 128) {
+                return name;
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (UnsupportedEncodingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class FileLease implements Lease {
+
+        private final Path lock;
+        private final Path record;
+        private final String token;
+
+        FileLease(Path lock, Path record, String token) {
+            this.lock = lock;
+            this.record = record;
+            this.token = token;
+        }
+
+        @Override
+        public URI getCreated() throws IOException {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(record, UTF_8);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            if (lines.size() < 2) {
+                return null;
+            }
+            try {
+                if (clock.getAsLong() - Long.parseLong(lines.get(1)) < remember) {
+                    return URI.create(lines.get(0));
+                }
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Ignoring the unreadable journal record " + record);
+            }
+            Files.deleteIfExists(record);
+            return null;
+        }
+
+        @Override
+        public void setCreated(URI journal) throws IOException {
+            Path written = directory.resolve(record.getFileName() + "." + token);
+            Files.write(written, (journal + "\n" + clock.getAsLong() + "\n").getBytes(UTF_8));
+            Files.move(written, record, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() {
+            try {
+                //the lease may have lapsed and been taken by another
+                if (!delete(lock, token)) {
+                    LOG.warn("The journal lock " + lock + " was broken while it was held");
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not release the journal lock " + lock + "; it will lapse", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted releasing the journal lock " + lock + "; it will lapse");
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link JournalLocks} held in memory, which keep the threads of a single instance of the service from creating the
+ * same journal twice. Leases here cannot be left behind by a dead holder, so they do not lapse.
+ */
+public class InMemoryJournalLocks implements JournalLocks {
+
+    private final long remember;
+    private final LongSupplier clock;
+
+    //guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int releases;
+
+    private static class Entry {
+        boolean held;
+        int waiting;
+        URI created;
+        long createdAt;
+    }
+
+    /**
+     * @param remember - how long a created journal is remembered, in ms
+     */
+    public InMemoryJournalLocks(long remember) {
+        this(remember, System::currentTimeMillis);
+    }
+
+    /**
+     * @param remember - how long a created journal is remembered, in ms
+     * @param clock    - supplies the current time in ms
+     */
+    InMemoryJournalLocks(long remember, LongSupplier clock) {
+        this.remember = remember;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized Lease acquire(String key, long wait) throws InterruptedException {
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        long deadline = System.nanoTime() + wait * 1_000_000;
+        entry.waiting++;
+        try {
+            while (entry.held) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+            }
+        } finally {
+            entry.waiting--;
+        }
+        entry.held = true;
+        return new Lease() {
+            @Override
+            public URI getCreated() {
+                synchronized (InMemoryJournalLocks.this) {
+                    return remembered(entry) ? entry.created : null;
+                }
+            }
+
+            @Override
+            public void setCreated(URI journal) {
+                synchronized (InMemoryJournalLocks.this) {
+                    entry.created = journal;
+                    entry.createdAt = clock.getAsLong();
+                }
+            }
+
+            @Override
+            public void close() {
+                release(key, entry);
+            }
+        };
+    }
+
+    private synchronized void release(String key, Entry entry) {
+        entry.held = false;
+        if (entry.waiting == 0 && !remembered(entry)) {
+            entries.remove(key);
+        }
+        //now and then forget the journals which are no longer remembered
+        if (++releases % 1000 == 0) {
+            entries.values().removeIf(e -> !e.held && e.waiting == 0 && !remembered(e));
+        }
+        notifyAll();
+    }
+
+    private boolean remembered(Entry entry) {
+        return entry.created != null && clock.getAsLong() - entry.createdAt < remember;
+    }
+}
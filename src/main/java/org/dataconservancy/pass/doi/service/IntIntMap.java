@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to ints, held in two arrays with open addressing, so that counting does not box. Keys
+ * cannot be removed. Not thread safe.
+ */
+final class IntIntMap {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * @param expected - the number of keys expected, to size the arrays
+     */
+    IntIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * add to the value for a key, which starts at 0
+     *
+     * @param key    - the key, which must not be negative
+     * @param amount - the amount to add
+     * @return the new value
+     */
+    int add(int key, int amount) {
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                grow();
+                slot = slot(key);
+            }
+        }
+        return values[slot] += amount;
+    }
+
+    /**
+     * @param key - the key
+     * @return the value for the key, or 0 if it has none
+     */
+    int get(int key) {
+        int slot = slot(key);
+        return keys[slot] == EMPTY ? 0 : values[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots, each of which may hold a key
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param slot - a slot
+     * @return the key in the slot, or -1 if it is empty
+     */
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @param slot - a slot holding a key
+     * @return the value in the slot
+     */
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * spread the bits of a key, since ordinals and encoded ISSNs are far from random
+     */
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to sets of ordinals, held as int arrays, with open addressing on the keys. Not thread
+ * safe.
+ */
+final class IntPostingMap {
+
+    static final int[] NONE = new int[0];
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[][] postings;
+    private int size;
+
+    IntPostingMap() {
+        keys = new int[1024];
+        postings = new int[1024][];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @param key - the key
+     * @return the ordinals for the key; empty if it has none
+     */
+    int[] get(int key) {
+        int slot = slot(key);
+        return keys[slot] == EMPTY ? NONE : postings[slot];
+    }
+
+    /**
+     * add an ordinal to the set for a key
+     *
+     * @param key     - the key, which must not be negative
+     * @param ordinal - the ordinal
+     */
+    void add(int key, int ordinal) {
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            postings[slot] = new int[] {ordinal};
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return;
+        }
+        int[] current = postings[slot];
+        for (int posting : current) {
+            if (posting == ordinal) {
+                return;
+            }
+        }
+        int[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = ordinal;
+        postings[slot] = added;
+    }
+
+    /**
+     * remove an ordinal from the set for a key. The key keeps its slot, with an empty set.
+     *
+     * @param key     - the key
+     * @param ordinal - the ordinal
+     */
+    void remove(int key, int ordinal) {
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            return;
+        }
+        int[] current = postings[slot];
+        int[] remaining = new int[current.length];
+        int kept = 0;
+        for (int posting : current) {
+            if (posting != ordinal) {
+                remaining[kept++] = posting;
+            }
+        }
+        postings[slot] = kept == 0 ? NONE : Arrays.copyOf(remaining, kept);
+    }
+
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int slot = IntIntMap.mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[][] oldPostings = postings;
+        keys = new int[oldKeys.length * 2];
+        postings = new int[oldKeys.length * 2][];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                postings[slot] = oldPostings[i];
+            }
+        }
+    }
+}
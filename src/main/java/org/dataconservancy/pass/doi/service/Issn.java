@@ -0,0 +1,133 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+/**
+ * Packs an ISSN, with its PASS type, into an int. The seven digits and the check character (0-9 or X) make a value
+ * below 2<sup>27</sup>, and the type takes the two bits above it, so that ISSNs can be compared and hashed without
+ * building strings. Only ISSNs whose check character agrees with their digits are encoded.
+ */
+final class Issn {
+
+    static final int UNTYPED = 0;
+    static final int PRINT = 1;
+    static final int ONLINE = 2;
+
+    /**
+     * the type of an ISSN PASS stores as {@code :nnnn-nnnc}, without a type name
+     */
+    static final int BLANK = 3;
+
+    /**
+     * returned for an ISSN which cannot be encoded
+     */
+    static final int INVALID = -1;
+
+    private static final int TYPE_SHIFT = 27;
+    private static final int VALUE_MASK = (1 << TYPE_SHIFT) - 1;
+
+    private static final String[] TYPE_NAMES = {null, PassDoiServlet.IssnType.PRINT.getPassTypeString(),
+                                                PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), ""};
+
+    private Issn() {
+    }
+
+    /**
+     * encode an ISSN of the form {@code type:nnnn-nnnc} or {@code :nnnn-nnnc} as PASS stores it, or a bare
+     * {@code nnnn-nnnc}; the hyphen may be left out
+     *
+     * @param issn - the ISSN
+     * @return the encoded ISSN, or {@link #INVALID} if it is not a valid ISSN of a known type
+     */
+    static int encode(String issn) {
+        int colon = issn.indexOf(':');
+        int type = UNTYPED;
+        if (colon >= 0) {
+            type = type(issn, colon);
+            if (type == UNTYPED) {
+                return INVALID;
+            }
+        }
+
+        int value = 0;
+        int digits = 0;
+        int weightedSum = 0;
+        for (int i = colon + 1; i < issn.length(); i++) {
+            char c = issn.charAt(i);
+            if (c == '-' && digits == 4 && issn.charAt(i - 1) != '-') {
+                continue;
+            }
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if ((c == 'X' || c == 'x') && digits == 7) {
+                digit = 10;
+            } else {
+                return INVALID;
+            }
+            if (digits == 8) {
+                return INVALID;
+            }
+            weightedSum += digit * (8 - digits);
+            value = digits < 7 ? value * 10 + digit : value * 11 + digit;
+            digits++;
+        }
+        //the check character makes the weighted sum, with weights 8 down to 1, a multiple of 11
+        if (digits != 8 || weightedSum % 11 != 0) {
+            return INVALID;
+        }
+        return type << TYPE_SHIFT | value;
+    }
+
+    /**
+     * @param code - an encoded ISSN
+     * @return the same ISSN without its type
+     */
+    static int untyped(int code) {
+        return code & VALUE_MASK;
+    }
+
+    /**
+     * @param code - an encoded ISSN
+     * @return the type of the ISSN
+     */
+    static int typeOf(int code) {
+        return code >>> TYPE_SHIFT;
+    }
+
+    /**
+     * @param code - an encoded ISSN
+     * @return the ISSN as PASS stores it
+     */
+    static String decode(int code) {
+        int value = untyped(code);
+        int check = value % 11;
+        String digits = String.format("%07d", value / 11);
+        String issn = digits.substring(0, 4) + "-" + digits.substring(4) + (check == 10 ? "X" : check);
+        String typeName = TYPE_NAMES[typeOf(code)];
+        return typeName == null ? issn : typeName + ":" + issn;
+    }
+
+    private static int type(String issn, int colon) {
+        for (int type = PRINT; type < TYPE_NAMES.length; type++) {
+            if (colon == TYPE_NAMES[type].length() && issn.regionMatches(0, TYPE_NAMES[type], 0, colon)) {
+                return type;
+            }
+        }
+        return UNTYPED;
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.client.fedora.UpdateConflictException;
+import org.dataconservancy.pass.model.Journal;
+import org.fcrepo.client.FcrepoOperationFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-behind queue of issns to be added to PASS journals, so that requests which find a journal missing some of
+ * its issns need not wait for the update. The issns waiting for each journal are merged, and written a batch at a
+ * time, after at most a set delay or as soon as a batch is full, so that a journal which is patched many times in a
+ * row, as during a backfill, is updated once.
+ *
+ * <p>Each addition is appended to a log file, and synced, before it is queued, so that additions which were not
+ * written before a crash are replayed when the queue is next opened. Once a batch has been written the log is
+ * rewritten with only the additions still waiting. Additions which could not be written are kept, and tried again
+ * with a later batch, waiting longer after each batch which could not all be written. An addition which fails as
+ * often as the most attempts allowed, or which cannot succeed, as when its journal is gone or PASS refuses the update,
+ * is parked: appended to a file of parked additions, in the form of the log, and no longer tried.</p>
+ */
+public class IssnWriteQueue implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IssnWriteQueue.class);
+
+    static final String LOG_FILE = "issn-writes.log";
+
+    static final String PARKED_FILE = "issn-writes.parked";
+
+    //the longest wait before trying additions again, unless the delay is longer
+    private static final long MAX_RETRY_DELAY = 300000;
+
+    private final PassClient passClient;
+    private final Path file;
+    private final long delay;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final ScheduledExecutorService writer;
+
+    //guarded by this, as is the log
+    private Map<URI, Set<String>> pending = new LinkedHashMap<>();
+    //the additions being written, until each is written or put back in pending
+    private Map<URI, Set<String>> inFlight = new LinkedHashMap<>();
+    private FileChannel channel;
+    private ScheduledFuture<?> scheduled;
+    //the failed attempts at each addition, and the batches in a row which could not all be written
+    private final Map<URI, Integer> attempts = new HashMap<>();
+    private int failedBatches;
+    private boolean closed;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+
+    /**
+     * open the queue, replaying any additions left in its log
+     *
+     * @param directory   - the directory holding the log file; created if absent
+     * @param passClient  - the client to update journals with
+     * @param delay       - the most time an addition waits to be written, in ms
+     * @param batchSize   - the number of journals which are written as soon as they are waiting
+     * @param maxAttempts - the most times an addition is tried before it is parked
+     * @throws IOException if the log could not be read or opened
+     */
+    public IssnWriteQueue(Path directory, PassClient passClient, long delay, int batchSize, int maxAttempts)
+        throws IOException {
+        Files.createDirectories(directory);
+        this.passClient = passClient;
+        this.file = directory.resolve(LOG_FILE);
+        this.delay = delay;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "issn-writer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        synchronized (this) {
+            replay();
+            rewrite();
+            if (!pending.isEmpty()) {
+                LOG.info("Replaying issn additions for " + pending.size() + " journals from " + file);
+                schedule(0);
+            }
+        }
+    }
+
+    /**
+     * queue issns to be added to a journal
+     *
+     * @param journal - the id of the journal in PASS
+     * @param issns   - the issns to add; those the journal has already are left alone
+     * @throws IOException if the queue is closed or the addition could not be logged, in which case it is not queued
+     */
+    public synchronized void add(URI journal, Collection<String> issns) throws IOException {
+        if (closed) {
+            throw new IOException("The issn write queue is closed");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(line(journal, issns).getBytes(UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+
+        pending.computeIfAbsent(journal, uri -> new LinkedHashSet<>()).addAll(issns);
+        queued.incrementAndGet();
+        schedule(pending.size() >= batchSize ? 0 : delay);
+    }
+
+    /**
+     * @param journal - the id of a journal in PASS
+     * @return the issns waiting to be added to the journal, including those being written
+     */
+    public synchronized Set<String> pending(URI journal) {
+        Set<String> issns = new LinkedHashSet<>(inFlight.getOrDefault(journal, Collections.emptySet()));
+        issns.addAll(pending.getOrDefault(journal, Collections.emptySet()));
+        return issns;
+    }
+
+    //called holding this; a write already scheduled is brought forward, but never put back
+    private void schedule(long after) {
+        if (scheduled != null && !scheduled.isDone()) {
+            if (after > 0 || scheduled.getDelay(MILLISECONDS) <= 0) {
+                return;
+            }
+            scheduled.cancel(false);
+        }
+        scheduled = writer.schedule(this::flush, after, MILLISECONDS);
+    }
+
+    /**
+     * write the waiting additions to PASS, a journal at a time, reading each journal and updating it if it lacks
+     * any of its issns; then rewrite the log with whatever is still waiting. Runs on the writer thread.
+     */
+    void flush() {
+        Map<URI, Set<String>> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            inFlight = new LinkedHashMap<>(batch);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+
+        Map<URI, Set<String>> unwritten = new LinkedHashMap<>();
+        for (Map.Entry<URI, Set<String>> entry : batch.entrySet()) {
+            URI uri = entry.getKey();
+            try {
+                if (write(uri, entry.getValue())) {
+                    written.incrementAndGet();
+                } else {
+                    park(uri, entry.getValue(), "the journal could not be read", null);
+                }
+                synchronized (this) {
+                    attempts.remove(uri);
+                    inFlight.remove(uri);
+                }
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                int attempt;
+                synchronized (this) {
+                    attempt = attempts.merge(uri, 1, Integer::sum);
+                }
+                boolean retryable = retryable(e);
+                if (retryable && attempt < maxAttempts) {
+                    LOG.warn("Could not add issns to journal " + uri + "; will try again", e);
+                    unwritten.put(uri, entry.getValue());
+                    continue;
+                }
+                park(uri, entry.getValue(), retryable ? "it failed " + attempt + " times" : "it cannot succeed", e);
+                synchronized (this) {
+                    attempts.remove(uri);
+                }
+            }
+        }
+
+        synchronized (this) {
+            inFlight.clear();
+            failedBatches = unwritten.isEmpty() ? 0 : failedBatches + 1;
+            //additions which came in while we were writing go after those we could not write
+            unwritten.forEach((uri, issns) -> pending.merge(uri, issns, (later, earlier) -> {
+                earlier.addAll(later);
+                return earlier;
+            }));
+            try {
+                rewrite();
+            } catch (IOException e) {
+                LOG.warn("Could not rewrite " + file + "; written additions will be replayed after a restart", e);
+            }
+            if (!pending.isEmpty() && !closed) {
+                schedule(failedBatches > 0 ? retryDelay() : pending.size() >= batchSize ? 0 : delay);
+            }
+        }
+    }
+
+    //called holding this; doubles with each batch in a row which could not all be written
+    private long retryDelay() {
+        long base = Math.max(delay, 1000);
+        return Math.min(base << Math.min(failedBatches - 1, 16), Math.max(delay, MAX_RETRY_DELAY));
+    }
+
+    /**
+     * @param uri   - the id of the journal in PASS
+     * @param issns - the issns to add
+     * @return false if the journal could not be read
+     */
+    private boolean write(URI uri, Set<String> issns) {
+        Journal journal = passClient.readResource(uri, Journal.class);
+        if (journal == null) {
+            return false;
+        }
+        List<String> current = journal.getIssns() == null ? Collections.emptyList() : journal.getIssns();
+        if (!current.containsAll(issns)) {
+            journal.setIssns(Stream.concat(current.stream(), issns.stream()).distinct().collect(Collectors.toList()));
+            passClient.updateResource(journal);
+        }
+        return true;
+    }
+
+    /**
+     * @param e - the error writing an addition
+     * @return false if the error will not go away, as when the journal is gone or PASS refuses the update
+     */
+    static boolean retryable(RuntimeException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UpdateConflictException || cause instanceof IOException) {
+                return true;
+            }
+            if (cause instanceof FcrepoOperationFailedException) {
+                int status = ((FcrepoOperationFailedException) cause).getStatusCode();
+                return status < 400 || status >= 500 || status == 408 || status == 409 || status == 412 ||
+                       status == 429;
+            }
+        }
+        return !(e instanceof IllegalArgumentException || e instanceof NullPointerException ||
+                 e instanceof ClassCastException);
+    }
+
+    //appends the addition to the parked file, where it may be looked at, or moved back to the log to be replayed
+    private synchronized void park(URI uri, Set<String> issns, String reason, RuntimeException e) {
+        parked.incrementAndGet();
+        LOG.error("Parking the issns waiting for journal " + uri + ", as " + reason + ": " + issns, e);
+        try {
+            Files.write(file.resolveSibling(PARKED_FILE), line(uri, issns).getBytes(UTF_8), CREATE, WRITE, APPEND);
+        } catch (IOException io) {
+            LOG.error("Could not park the issns waiting for journal " + uri + " in " + PARKED_FILE, io);
+        }
+    }
+
+    private static String line(URI journal, Collection<String> issns) {
+        JsonArrayBuilder issnArray = Json.createArrayBuilder();
+        issns.forEach(issnArray::add);
+        return Json.createObjectBuilder().add("journal", journal.toString()).add("issns", issnArray).build() + "\n";
+    }
+
+    //called holding this
+    private void replay() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try (JsonReader json = Json.createReader(new StringReader(line))) {
+                    JsonObject addition = json.readObject();
+                    List<String> issns = new ArrayList<>();
+                    addition.getJsonArray("issns").getValuesAs(JsonString.class)
+                            .forEach(issn -> issns.add(issn.getString()));
+                    pending.computeIfAbsent(URI.create(addition.getString("journal")), uri -> new LinkedHashSet<>())
+                           .addAll(issns);
+                } catch (JsonException | ClassCastException | NullPointerException | IllegalArgumentException e) {
+                    //most likely the last addition, torn by a crash before it was synced
+                    LOG.warn("Skipping unreadable issn addition in " + file + ": " + line);
+                }
+            }
+        }
+    }
+
+    //called holding this; writes the waiting additions to a new log, and switches to it
+    private void rewrite() throws IOException {
+        Path rewritten = file.resolveSibling(LOG_FILE + ".new");
+        try (Writer out = Files.newBufferedWriter(rewritten, UTF_8)) {
+            for (Map.Entry<URI, Set<String>> entry : pending.entrySet()) {
+                out.write(line(entry.getKey(), entry.getValue()));
+            }
+        }
+        try (FileChannel sync = FileChannel.open(rewritten, WRITE)) {
+            sync.force(true);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(rewritten, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+    }
+
+    /**
+     * @return the number of journals with issns waiting
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return the queue state as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        return Json.createObjectBuilder()
+                   .add("waiting", size())
+                   .add("queued", queued.get())
+                   .add("written", written.get())
+                   .add("failed", failed.get())
+                   .add("batches", batches.get())
+                   .add("parked", parked.get())
+                   .build();
+    }
+
+    /**
+     * write whatever is waiting, and close the log. Anything which could not be written is replayed when the queue
+     * is next opened. Additions are refused once the queue is closing.
+     *
+     * @throws IOException if the log could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        writer.shutdownNow();
+        try {
+            writer.awaitTermination(10, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (this) {
+            channel.close();
+        }
+    }
+}
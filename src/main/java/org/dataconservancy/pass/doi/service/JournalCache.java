@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * A bounded cache of resolved journals. Maps the name and typed issns we get from Crossref for a journal to the URI
+ * of the PASS journal they resolved to, so that repeat lookups for a journal need no index queries. Only successful
+ * resolutions are cached; entries expire after a configurable time to live, and the least recently used entry is
+ * evicted when the cache is full.
+ */
+public class JournalCache {
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries - the maximum number of journals to hold; 0 disables the cache
+     * @param ttl        - how long to keep a resolution, in ms
+     */
+    public JournalCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, System::currentTimeMillis);
+    }
+
+    JournalCache(int maxEntries, long ttl, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JournalCache.Entry> eldest) {
+                if (size() > JournalCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * look up the journal a name and set of issns resolved to
+     *
+     * @param name  - the journal name
+     * @param issns - the typed issns
+     * @return the URI of the PASS journal, or null if we have no current resolution
+     */
+    public URI get(String name, List<String> issns) {
+        String key = key(name, issns);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires > clock.getAsLong()) {
+                hits.increment();
+                return entry.uri;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * record the journal a name and set of issns resolved to, or were used to create
+     *
+     * @param name  - the journal name
+     * @param issns - the typed issns
+     * @param uri   - the URI of the PASS journal
+     */
+    public void put(String name, List<String> issns, URI uri) {
+        if (maxEntries <= 0 || ttl <= 0 || uri == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key(name, issns), new Entry(uri, clock.getAsLong() + ttl));
+        }
+    }
+
+    /**
+     * drop everything from the cache
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the cache counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        return Json.createObjectBuilder()
+                   .add("size", size())
+                   .add("max-size", maxEntries)
+                   .add("hits", getHits())
+                   .add("misses", getMisses())
+                   .add("evictions", getEvictions())
+                   .build();
+    }
+
+    /**
+     * the order in which Crossref lists issns is not significant, so we sort them for the key
+     */
+    private static String key(String name, List<String> issns) {
+        return (name == null ? "" : name) + "\n" + String.join("\n", new TreeSet<>(issns));
+    }
+
+    private static class Entry {
+        private final URI uri;
+        private final long expires;
+
+        Entry(URI uri, long expires) {
+            this.uri = uri;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory copy of the PASS journals, for matching journals without going to the index. It is loaded by a paged
+ * scan of the PASS index, and kept current by rescanning it from time to time and by the writes the service makes
+ * itself. Each journal is given an ordinal, and the name and issn lookups map to arrays of ordinals, so memory use
+ * grows with the number of journals rather than with the traffic. Valid issns are held {@link Issn encoded} in
+ * int-keyed maps, and journals are scored in a primitive map of ordinals, so that matching a journal allocates
+ * little more than its result; any issn which cannot be encoded is held as a string.
+ *
+ * <p>Journals are matched on their typed issns, exactly as the index matches them, so that "0000-0004" does not
+ * match a journal with "Online:0000-0004". Names are matched ignoring case and runs of white space.</p>
+ *
+ * <p>If a name similarity is given, names are also held in a {@link TrigramIndex}. When the issns are not decisive
+ * (no single journal matches more of them than any other) and no journal has exactly the name, the journal whose
+ * name is most similar to the name, if at least that similar, counts as matching it, so that "J. Biol. Chem." can
+ * find the "Journal of Biological Chemistry" rather than a duplicate being created. If another name is nearly as
+ * similar, as "Journal of Physics" and "Journal of Physiology" are to "J. Phys.", neither matches.</p>
+ */
+public class JournalIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalIndex.class);
+
+    private static final int[] NONE = new int[0];
+
+    //how much more similar than any other the most similar name must be to match
+    static final double SIMILAR_NAME_MARGIN = 0.05;
+
+    private final OkHttpClient client;
+    private final String searchUrl;
+    private final int pageSize;
+    //null if names are only matched exactly
+    private final TrigramIndex similarNames;
+    private final double nameSimilarity;
+    private final long nameBudget;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //guarded by lock; the arrays are indexed by ordinal, and a removed journal leaves a null uri
+    private URI[] uris = new URI[1024];
+    private String[] names = new String[1024];
+    private int[][] issnCodes = new int[1024][];
+    private String[][] otherIssns = new String[1024][];
+    private int[] generations = new int[1024];
+    private int size;
+    private int count;
+    private int generation;
+    private final Map<URI, Integer> ordinals = new HashMap<>();
+    private final Map<String, int[]> byName = new HashMap<>();
+    private final IntPostingMap byIssnCode = new IntPostingMap();
+    private final Map<String, int[]> byIssn = new HashMap<>();
+
+    private volatile boolean loaded;
+    private volatile long lastScan;
+
+    private final AtomicLong similarNameLookups = new AtomicLong();
+    private final AtomicLong similarNameMatches = new AtomicLong();
+
+    /**
+     * @param client   - the http client to scan the index with
+     * @param indexUrl - the url of the PASS index, as for the PASS java client
+     * @param pageSize - the number of journals to read from the index at a time
+     */
+    public JournalIndex(OkHttpClient client, String indexUrl, int pageSize) {
+        this(client, indexUrl, pageSize, 0, 0);
+    }
+
+    /**
+     * @param client         - the http client to scan the index with
+     * @param indexUrl       - the url of the PASS index, as for the PASS java client
+     * @param pageSize       - the number of journals to read from the index at a time
+     * @param nameSimilarity - the least similarity, from 0 to 1, for a journal name to match a name which is not
+     *                       the same; 0 to match names exactly only
+     * @param nameBudget     - the most time to spend looking for similar names, in ms
+     */
+    public JournalIndex(OkHttpClient client, String indexUrl, int pageSize, double nameSimilarity, long nameBudget) {
+        this.client = client;
+        this.searchUrl = indexUrl + (indexUrl.endsWith("/") ? "" : "/") + "_search";
+        this.pageSize = pageSize;
+        this.similarNames = nameSimilarity > 0 ? new TrigramIndex() : null;
+        this.nameSimilarity = nameSimilarity;
+        this.nameBudget = MILLISECONDS.toNanos(nameBudget);
+    }
+
+    /**
+     * score the journals matching a name and set of issns, as {@link JournalMatcher#match(String, List)} does,
+     * noting the similarity of a name matched for being like the name
+     *
+     * @param name  - the journal name; may be null
+     * @param issns - the typed issns
+     * @return the scores
+     */
+    public JournalScores match(String name, List<String> issns) {
+        JournalScores journalScores = new JournalScores();
+        lock.readLock().lock();
+        try {
+            List<TrigramIndex.Candidate> similar = new ArrayList<>();
+            IntIntMap scores = tally(name, issns, similar);
+            for (TrigramIndex.Candidate candidate : similar) {
+                journalScores.addSimilarName(uris[candidate.ordinal], candidate.similarity);
+            }
+            for (int slot = 0; slot < scores.capacity(); slot++) {
+                if (scores.keyAt(slot) >= 0) {
+                    URI uri = uris[scores.keyAt(slot)];
+                    int score = scores.valueAt(slot);
+                    if ((score & 1) == 1) {
+                        journalScores.addNameMatch(uri);
+                    }
+                    for (int i = 0; i < score >> 1; i++) {
+                        journalScores.addIssnMatch(uri);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return journalScores;
+    }
+
+    /**
+     * find the best scoring journal for a name and set of issns, in the order of {@link JournalScores}, without
+     * building the scores of the others
+     *
+     * @param name  - the journal name; may be null
+     * @param issns - the typed issns
+     * @return the id of the best scoring journal, or null if none matches
+     */
+    public URI best(String name, List<String> issns) {
+        lock.readLock().lock();
+        try {
+            IntIntMap scores = tally(name, issns, null);
+            int best = -1;
+            int bestScore = 0;
+            for (int slot = 0; slot < scores.capacity(); slot++) {
+                int ordinal = scores.keyAt(slot);
+                int score = scores.valueAt(slot);
+                if (ordinal >= 0 && (best < 0 || JournalScores.better(score >> 1, (score & 1) == 1, uris[ordinal],
+                                                                      bestScore >> 1, (bestScore & 1) == 1,
+                                                                      uris[best]))) {
+                    best = ordinal;
+                    bestScore = score;
+                }
+            }
+            return best < 0 ? null : uris[best];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * called with the read lock held; each score is twice the issn matches, plus one for a name match
+     *
+     * @param name    - the journal name; may be null
+     * @param issns   - the typed issns
+     * @param similar - if not null, gets the journal which matched for having a similar name
+     * @return the scores, by ordinal
+     */
+    private IntIntMap tally(String name, List<String> issns, List<TrigramIndex.Candidate> similar) {
+        IntIntMap scores = new IntIntMap(4);
+        int[] named = NONE;
+        if (name != null && !name.isEmpty()) {
+            named = byName.getOrDefault(normalizeName(name), NONE);
+            addScores(scores, named, 1);
+        }
+        for (String issn : issns) {
+            int code = encode(issn);
+            addScores(scores, code == Issn.INVALID ? byIssn.getOrDefault(issn, NONE) : byIssnCode.get(code), 2);
+        }
+        if (similarNames != null && named.length == 0 && name != null && !name.isEmpty() && !decisive(scores)) {
+            similarNameLookups.incrementAndGet();
+            //most similar first
+            List<TrigramIndex.Candidate> candidates = similarNames.similar(name, nameSimilarity, nameBudget);
+            if (candidates.size() == 1 || candidates.size() > 1 &&
+                candidates.get(0).similarity - candidates.get(1).similarity >= SIMILAR_NAME_MARGIN) {
+                TrigramIndex.Candidate candidate = candidates.get(0);
+                scores.add(candidate.ordinal, 1);
+                similarNameMatches.incrementAndGet();
+                if (similar != null) {
+                    similar.add(candidate);
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * @param scores - the scores, by ordinal
+     * @return true if a single journal matches more issns than any other
+     */
+    private static boolean decisive(IntIntMap scores) {
+        int top = 0;
+        int atTop = 0;
+        for (int slot = 0; slot < scores.capacity(); slot++) {
+            if (scores.keyAt(slot) >= 0) {
+                int issnMatches = scores.valueAt(slot) >> 1;
+                if (issnMatches > top) {
+                    top = issnMatches;
+                    atTop = 1;
+                } else if (issnMatches == top) {
+                    atTop++;
+                }
+            }
+        }
+        return top > 0 && atTop == 1;
+    }
+
+    private static void addScores(IntIntMap scores, int[] matches, int points) {
+        for (int ordinal : matches) {
+            scores.add(ordinal, points);
+        }
+    }
+
+    /**
+     * add a journal to the index, or update it
+     *
+     * @param uri   - the id of the journal in PASS
+     * @param name  - the journal name; may be null
+     * @param issns - the typed issns
+     */
+    public void put(URI uri, String name, List<String> issns) {
+        lock.writeLock().lock();
+        try {
+            put(uri, name, issns, generation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //called with the write lock held
+    private void put(URI uri, String name, List<String> journalIssns, int journalGeneration) {
+        Integer existing = ordinals.get(uri);
+        int ordinal;
+        if (existing != null) {
+            ordinal = existing;
+            unlink(ordinal);
+        } else {
+            if (size == uris.length) {
+                int capacity = size * 2;
+                uris = Arrays.copyOf(uris, capacity);
+                names = Arrays.copyOf(names, capacity);
+                issnCodes = Arrays.copyOf(issnCodes, capacity);
+                otherIssns = Arrays.copyOf(otherIssns, capacity);
+                generations = Arrays.copyOf(generations, capacity);
+            }
+            ordinal = size++;
+            count++;
+            uris[ordinal] = uri;
+            ordinals.put(uri, ordinal);
+        }
+        names[ordinal] = name == null || name.isEmpty() ? null : normalizeName(name);
+        generations[ordinal] = journalGeneration;
+        if (names[ordinal] != null) {
+            byName.compute(names[ordinal], (key, postings) -> add(postings, ordinal));
+            if (similarNames != null) {
+                similarNames.add(ordinal, name);
+            }
+        }
+
+        int[] codes = new int[journalIssns.size()];
+        int encoded = 0;
+        List<String> others = null;
+        for (String issn : journalIssns) {
+            int code = encode(issn);
+            if (code != Issn.INVALID) {
+                codes[encoded++] = code;
+                byIssnCode.add(code, ordinal);
+                continue;
+            }
+            if (others == null) {
+                others = new ArrayList<>();
+            }
+            others.add(issn);
+            byIssn.compute(issn, (key, postings) -> add(postings, ordinal));
+        }
+        issnCodes[ordinal] = encoded == codes.length ? codes : Arrays.copyOf(codes, encoded);
+        otherIssns[ordinal] = others == null ? null : others.toArray(new String[0]);
+    }
+
+    /**
+     * remove a journal from the index
+     *
+     * @param uri - the id of the journal in PASS
+     */
+    public void remove(URI uri) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.get(uri);
+            if (ordinal != null) {
+                drop(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //called with the write lock held
+    private void drop(int ordinal) {
+        ordinals.remove(uris[ordinal]);
+        unlink(ordinal);
+        uris[ordinal] = null;
+        names[ordinal] = null;
+        issnCodes[ordinal] = null;
+        otherIssns[ordinal] = null;
+        count--;
+    }
+
+    //called with the write lock held
+    private void unlink(int ordinal) {
+        if (names[ordinal] != null) {
+            byName.computeIfPresent(names[ordinal], (key, postings) -> without(postings, ordinal));
+            if (similarNames != null) {
+                similarNames.remove(ordinal);
+            }
+        }
+        for (int code : issnCodes[ordinal]) {
+            byIssnCode.remove(code, ordinal);
+        }
+        if (otherIssns[ordinal] == null) {
+            return;
+        }
+        for (String issn : otherIssns[ordinal]) {
+            byIssn.computeIfPresent(issn, (key, postings) -> without(postings, ordinal));
+        }
+    }
+
+    /**
+     * @param issn - a typed issn
+     * @return the issn encoded, or {@link Issn#INVALID} if it does not decode to the same string, as a bare or
+     *     lower case issn does not; those are held as strings, so that they too match only exactly
+     */
+    private static int encode(String issn) {
+        int code = Issn.encode(issn);
+        return code != Issn.INVALID && Issn.decode(code).equals(issn) ? code : Issn.INVALID;
+    }
+
+    private static int[] add(int[] postings, int ordinal) {
+        if (postings == null) {
+            return new int[] {ordinal};
+        }
+        for (int posting : postings) {
+            if (posting == ordinal) {
+                return postings;
+            }
+        }
+        int[] added = Arrays.copyOf(postings, postings.length + 1);
+        added[postings.length] = ordinal;
+        return added;
+    }
+
+    private static int[] without(int[] postings, int ordinal) {
+        int[] remaining = new int[postings.length];
+        int kept = 0;
+        for (int posting : postings) {
+            if (posting != ordinal) {
+                remaining[kept++] = posting;
+            }
+        }
+        return kept == 0 ? null : Arrays.copyOf(remaining, kept);
+    }
+
+    /**
+     * names are matched ignoring case and runs of white space
+     */
+    static String normalizeName(String name) {
+        return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * scan the PASS index for all of its journals, page by page, bringing the index up to date as each page comes
+     * in. Journals which were not seen by a complete scan, and have not been written since it began, are taken to
+     * have been deleted.
+     *
+     * @throws IOException if the PASS index could not be read
+     */
+    public void refresh() throws IOException {
+        long started = System.currentTimeMillis();
+        int scanGeneration;
+        lock.writeLock().lock();
+        try {
+            scanGeneration = ++generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        int scanned = 0;
+        JsonArray searchAfter = null;
+        while (true) {
+            JsonArray hits = page(searchAfter);
+            lock.writeLock().lock();
+            try {
+                for (JsonValue hit : hits) {
+                    JsonObject source = hit.asJsonObject().getJsonObject("_source");
+                    if (source == null || source.getJsonString(JournalMatcher.ID_FIELD) == null) {
+                        continue;
+                    }
+                    put(URI.create(source.getString(JournalMatcher.ID_FIELD)),
+                        source.getString(JournalMatcher.NAME_FIELD, null), JournalMatcher.readIssns(source),
+                        scanGeneration);
+                    scanned++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (hits.size() < pageSize) {
+                break;
+            }
+            searchAfter = hits.getJsonObject(hits.size() - 1).getJsonArray("sort");
+        }
+
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                if (uris[ordinal] != null && generations[ordinal] < scanGeneration) {
+                    drop(ordinal);
+                    removed++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        loaded = true;
+        lastScan = System.currentTimeMillis();
+        LOG.info("Scanned " + scanned + " journals from the PASS index in " + (lastScan - started) + " ms; " +
+                 removed + " removed");
+    }
+
+    /**
+     * read a page of journals from the PASS index, in order of id
+     *
+     * @param searchAfter - the sort values of the last journal of the previous page, or null for the first page
+     * @return the hits
+     * @throws IOException if the PASS index could not be read
+     */
+    private JsonArray page(JsonArray searchAfter) throws IOException {
+        JsonObjectBuilder query = Json.createObjectBuilder()
+                                      .add("size", pageSize)
+                                      .add("_source", Json.createArrayBuilder().add(JournalMatcher.ID_FIELD)
+                                                          .add(JournalMatcher.NAME_FIELD)
+                                                          .add(JournalMatcher.ISSNS_FIELD))
+                                      .add("query", Json.createObjectBuilder().add("query_string",
+                                          Json.createObjectBuilder().add("query", "@type:Journal")))
+                                      .add("sort", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                                          .add(JournalMatcher.ID_FIELD, "asc")));
+        if (searchAfter != null) {
+            query.add("search_after", searchAfter);
+        }
+
+        Request request = new Request.Builder()
+            .url(searchUrl)
+            .post(RequestBody.create(JournalMatcher.JSON, query.build().toString()))
+            .build();
+        try (Response response = client.newCall(request).execute();
+             InputStream in = response.body().byteStream();
+             JsonReader reader = Json.createReader(in)) {
+            if (!response.isSuccessful()) {
+                throw new IOException("The index returned " + response.code() + " while scanning journals");
+            }
+            return reader.readObject().getJsonObject("hits").getJsonArray("hits");
+        }
+    }
+
+    /**
+     * @return true once a scan has completed, so that the index holds all of the journals
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the index size and state as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        JsonObjectBuilder stats = Json.createObjectBuilder()
+                                      .add("journals", size())
+                                      .add("loaded", isLoaded())
+                                      .add("last-scan", lastScan);
+        if (similarNames != null) {
+            stats.add("similar-name-lookups", similarNameLookups.get())
+                 .add("similar-name-matches", similarNameMatches.get());
+        }
+        return stats.build();
+    }
+}
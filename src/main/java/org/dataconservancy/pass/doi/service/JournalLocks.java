@@ -0,0 +1,83 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Locks for creating journals, so that when several instances of the service are given DOIs of the same new journal
+ * at once, only one of them creates it. A lock is held as a lease, keyed by the journal's normalized set of issns; the
+ * holder records the journal it creates under the key, so that those which were waiting for the lease can use that
+ * journal rather than creating another, even before the journal is in the PASS index. A lease which is not released,
+ * because its holder has died, lapses after a while so that the key is not locked for good.
+ */
+public interface JournalLocks {
+
+    /**
+     * a lease on a key, which is released by closing it
+     */
+    interface Lease extends AutoCloseable {
+
+        /**
+         * @return the journal recorded as created under the key, by this or an earlier holder of a lease on it, if
+         * it was recorded recently enough to be remembered; otherwise null
+         */
+        URI getCreated() throws IOException;
+
+        /**
+         * record the journal created under the key
+         *
+         * @param journal - the id of the journal
+         */
+        void setCreated(URI journal) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * take a lease on a key, waiting while another holds it
+     *
+     * @param key  - the key, as made by {@link #key(List)}
+     * @param wait - the most time to wait, in ms
+     * @return the lease, or null if it could not be had in time
+     * @throws IOException          if the lease could not be taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Lease acquire(String key, long wait) throws IOException, InterruptedException;
+
+    /**
+     * make the key for a set of issns, which is the same whatever their order, type, case or hyphenation
+     *
+     * @param issns - the issns, typed or not
+     * @return the key
+     */
+    static String key(List<String> issns) {
+        TreeSet<String> normalized = new TreeSet<>();
+        for (String issn : issns) {
+            String value = issn.substring(issn.indexOf(':') + 1).replace("-", "").trim().toUpperCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                normalized.add(value);
+            }
+        }
+        return String.join(",", normalized);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scores PASS journals against a journal name and set of issns with a single index query. Rather than one
+ * {@code findAllByAttribute} call for the name and one for each issn, we ask the index for every journal matching
+ * any of them, and work out from the returned records which of the attributes each journal matched. The scores are
+ * the same as {@link PassDoiServlet#find(String, List)} would compute from the separate lookups. Several journals
+ * may be scored with the one query, for requests which have been collected into a batch.
+ */
+public class JournalMatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalMatcher.class);
+
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    static final String ID_FIELD = "@id";
+    static final String NAME_FIELD = "name";
+    static final String ISSNS_FIELD = "issns";
+
+    private final OkHttpClient client;
+    private final String searchUrl;
+    private final int limit;
+
+    /**
+     * @param client   - the http client to query the index with
+     * @param indexUrl - the url of the PASS index, as for the PASS java client
+     * @param limit    - the maximum number of journals to consider
+     */
+    public JournalMatcher(OkHttpClient client, String indexUrl, int limit) {
+        this.client = client;
+        this.searchUrl = indexUrl + (indexUrl.endsWith("/") ? "" : "/") + "_search";
+        this.limit = limit;
+    }
+
+    /**
+     * score the journals matching a name and set of issns, keeping the name and issn matches apart
+     *
+     * @param name  - the journal name; may be null
+     * @param issns - the typed issns
+     * @return the scores
+     */
+    public JournalScores match(String name, List<String> issns) {
+        Query query = new Query(name, issns);
+        return scoreAll(Collections.singletonList(query)).get(query);
+    }
+
+    /**
+     * score the journals matching each of several names and sets of issns, with a single index query for them all
+     *
+     * @param queries - the names and issns
+     * @return the scores for each query, as for {@link #match(String, List)}
+     */
+    public Map<Query, JournalScores> scoreAll(List<Query> queries) {
+        Map<Query, JournalScores> scores = new HashMap<>();
+        Set<String> clauses = new LinkedHashSet<>();
+        for (Query query : queries) {
+            scores.put(query, new JournalScores());
+            if (query.name != null && !query.name.isEmpty()) {
+                clauses.add(clause(NAME_FIELD, query.name));
+            }
+            for (String issn : query.issns) {
+                clauses.add(clause(ISSNS_FIELD, issn));
+            }
+        }
+        if (clauses.isEmpty()) {
+            return scores;
+        }
+
+        JsonObject query = Json.createObjectBuilder()
+                               .add("size", limit * scores.size())
+                               .add("_source", Json.createArrayBuilder().add(ID_FIELD).add(NAME_FIELD)
+                                                   .add(ISSNS_FIELD))
+                               .add("query", Json.createObjectBuilder().add("query_string", Json.createObjectBuilder()
+                                   .add("query", "@type:Journal AND (" + String.join(" OR ", clauses) + ")")))
+                               .build();
+        LOG.debug("Searching index using query: " + query);
+
+        Request request = new Request.Builder()
+            .url(searchUrl)
+            .post(RequestBody.create(JSON, query.toString()))
+            .build();
+
+        JsonArray hits;
+        try (Response response = client.newCall(request).execute();
+             InputStream in = response.body().byteStream();
+             JsonReader reader = Json.createReader(in)) {
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("The index returned " + response.code() + " for query " + query);
+            }
+            hits = reader.readObject().getJsonObject("hits").getJsonArray("hits");
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred while processing the query: " + query, e);
+        }
+
+        for (JsonValue hit : hits) {
+            JsonObject source = hit.asJsonObject().getJsonObject("_source");
+            if (source == null || source.getJsonString(ID_FIELD) == null) {
+                continue;
+            }
+
+            Set<String> journalIssns = new HashSet<>(readIssns(source));
+            String journalName = source.getString(NAME_FIELD, null);
+            URI uri = URI.create(source.getString(ID_FIELD));
+            for (Map.Entry<Query, JournalScores> entry : scores.entrySet()) {
+                Query journal = entry.getKey();
+                if (journal.name != null && journal.name.equals(journalName)) {
+                    entry.getValue().addNameMatch(uri);
+                }
+                for (String issn : journal.issns) {
+                    if (journalIssns.contains(issn)) {
+                        entry.getValue().addIssnMatch(uri);
+                    }
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * read the issns of a journal record from the index, which holds a single issn as a plain string
+     *
+     * @param source - the journal record
+     * @return the typed issns
+     */
+    static List<String> readIssns(JsonObject source) {
+        List<String> issns = new ArrayList<>();
+        JsonValue issnsValue = source.get(ISSNS_FIELD);
+        if (issnsValue instanceof JsonArray) {
+            for (JsonValue issn : (JsonArray) issnsValue) {
+                if (issn instanceof JsonString) {
+                    issns.add(((JsonString) issn).getString());
+                }
+            }
+        } else if (issnsValue instanceof JsonString) {
+            issns.add(((JsonString) issnsValue).getString());
+        }
+        return issns;
+    }
+
+    /**
+     * an exact match on a field, as the PASS java client builds it
+     */
+    private static String clause(String field, String value) {
+        return field + ":\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * a journal name and set of issns to score journals against
+     */
+    public static final class Query {
+
+        private final String name;
+        private final List<String> issns;
+
+        /**
+         * @param name  - the journal name; may be null
+         * @param issns - the typed issns
+         */
+        public Query(String name, List<String> issns) {
+            this.name = name;
+            this.issns = issns;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Query)) {
+                return false;
+            }
+            Query query = (Query) o;
+            return Objects.equals(name, query.name) && issns.equals(query.issns);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, issns);
+        }
+    }
+}
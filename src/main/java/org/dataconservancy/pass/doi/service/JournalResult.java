@@ -0,0 +1,272 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * The outcome of resolving a DOI against Crossref and PASS. Either a journal id together with the Crossref
+ * works object, or an error message. In both cases we carry the HTTP status to report to the client. A client may
+ * ask for only some of the {@link Field}s of a successful result.
+ */
+public class JournalResult {
+
+    /**
+     * the parts of a successful result a client may ask for
+     */
+    public enum Field {
+        JOURNAL("journal"),
+        TITLE("title"),
+        ISSNS("issns"),
+        CROSSREF("crossref");
+
+        /**
+         * what we return when the client does not say
+         */
+        static final Set<Field> DEFAULT = Collections.unmodifiableSet(EnumSet.of(JOURNAL, CROSSREF));
+
+        private final String name;
+
+        Field(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * parse a comma separated list of field names, as given in a request
+         *
+         * @param names - the field names; may be null
+         * @return the fields, or the default fields if none are given
+         * @throws IllegalArgumentException if a name is not that of a field
+         */
+        public static Set<Field> parse(String names) {
+            if (names == null || names.trim().isEmpty()) {
+                return DEFAULT;
+            }
+            Set<Field> fields = EnumSet.noneOf(Field.class);
+            for (String name : names.split(",")) {
+                String trimmed = name.trim().toLowerCase(Locale.ROOT);
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                Field match = null;
+                for (Field field : values()) {
+                    if (field.name.equals(trimmed)) {
+                        match = field;
+                    }
+                }
+                if (match == null) {
+                    throw new IllegalArgumentException("Unknown field " + name.trim());
+                }
+                fields.add(match);
+            }
+            return fields;
+        }
+    }
+
+    private final int status;
+    private final String journalId;
+    private final String journalName;
+    private final List<String> issns;
+    private final JsonObject crossref;
+    private final String error;
+    private final long staleness;
+
+    private JournalResult(int status, String journalId, String journalName, List<String> issns, JsonObject crossref,
+                          String error, long staleness) {
+        this.status = status;
+        this.journalId = journalId;
+        this.journalName = journalName;
+        this.issns = issns;
+        this.crossref = crossref;
+        this.error = error;
+        this.staleness = staleness;
+    }
+
+    /**
+     * a successful resolution
+     *
+     * @param journalId   - the (externalized) id of the PASS journal
+     * @param journalName - the name of the PASS journal
+     * @param issns       - the typed issns of the PASS journal
+     * @param crossref    - the Crossref works object for the DOI
+     * @return the result
+     */
+    static JournalResult success(String journalId, String journalName, List<String> issns, JsonObject crossref) {
+        return new JournalResult(200, journalId, journalName, issns, crossref, null, -1);
+    }
+
+    /**
+     * a failed resolution
+     *
+     * @param status  - the HTTP status to report
+     * @param message - the error message to report
+     * @return the result
+     */
+    static JournalResult error(int status, String message) {
+        return new JournalResult(status, null, null, null, null, message, -1);
+    }
+
+    /**
+     * this result, marked as built from a Crossref record which had expired
+     *
+     * @param staleness - the age of the Crossref record, in ms
+     * @return the result
+     */
+    JournalResult withStaleness(long staleness) {
+        return new JournalResult(status, journalId, journalName, issns, crossref, error, staleness);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getJournalId() {
+        return journalId;
+    }
+
+    public String getJournalName() {
+        return journalName;
+    }
+
+    public List<String> getIssns() {
+        return issns;
+    }
+
+    public JsonObject getCrossref() {
+        return crossref;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the age of the expired Crossref record this result was built from, in ms; -1 if the record was current
+     */
+    public long getStaleness() {
+        return staleness;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * when the Crossref record was last indexed by Crossref, which we take as the time the result last changed
+     *
+     * @return the time in ms, or -1 if we do not know it
+     */
+    public long getLastModified() {
+        JsonObject message = crossref == null ? null : crossref.getJsonObject(CrossrefReader.MESSAGE);
+        JsonObject indexed = message == null ? null : message.getJsonObject("indexed");
+        JsonNumber timestamp = indexed == null ? null : indexed.getJsonNumber("timestamp");
+        return timestamp == null ? -1 : timestamp.longValue();
+    }
+
+    /**
+     * A weak entity tag for the representation of this result with the given fields. It is built from the journal
+     * id and the time the Crossref record was indexed, together with the journal name and issns if they are
+     * included, so that it changes whenever what we would send changes.
+     *
+     * @param fields - the fields of the representation
+     * @return the entity tag, or null if the result is not a success
+     */
+    public String getEtag(Set<Field> fields) {
+        if (!isSuccess()) {
+            return null;
+        }
+        StringBuilder tagged = new StringBuilder().append(journalId).append('\n').append(getLastModified())
+                                                  .append('\n').append(fields);
+        if (fields.contains(Field.TITLE) || fields.contains(Field.ISSNS)) {
+            tagged.append('\n').append(journalName).append('\n').append(issns);
+        }
+        return "W/\"" + UUID.nameUUIDFromBytes(tagged.toString().getBytes(UTF_8)) + "\"";
+    }
+
+    /**
+     * write this result as the JSON object we return to clients
+     *
+     * @param generator - the generator to write to
+     */
+    void write(JsonGenerator generator) {
+        write(generator, Field.DEFAULT);
+    }
+
+    /**
+     * write this result as the JSON object we return to clients, with only the fields asked for
+     *
+     * @param generator - the generator to write to
+     * @param fields    - the fields to write
+     */
+    void write(JsonGenerator generator, Set<Field> fields) {
+        generator.writeStartObject();
+        writeFields(generator, fields);
+        generator.writeEnd();
+    }
+
+    /**
+     * write this result as one entry of a batch response, which also carries the doi and status
+     *
+     * @param generator - the generator to write to
+     * @param doi       - the doi as supplied by the client
+     */
+    void write(JsonGenerator generator, String doi) {
+        generator.writeStartObject()
+                 .write("doi", doi)
+                 .write("status", status);
+        writeFields(generator, Field.DEFAULT);
+        generator.writeEnd();
+    }
+
+    private void writeFields(JsonGenerator generator, Set<Field> fields) {
+        if (!isSuccess()) {
+            generator.write("error", error);
+            return;
+        }
+        if (fields.contains(Field.JOURNAL)) {
+            generator.write("journal-id", journalId);
+        }
+        if (fields.contains(Field.TITLE) && journalName != null) {
+            generator.write("title", journalName);
+        }
+        if (fields.contains(Field.ISSNS)) {
+            generator.writeStartArray("issns");
+            if (issns != null) {
+                issns.forEach(generator::write);
+            }
+            generator.writeEnd();
+        }
+        //the crossref record is written straight from its object tree, rather than being rendered to a string first
+        if (fields.contains(Field.CROSSREF) && crossref != null) {
+            generator.write("crossref", crossref);
+        }
+    }
+}
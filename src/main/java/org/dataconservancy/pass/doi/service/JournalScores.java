@@ -0,0 +1,199 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * The scores of the PASS journals matching a journal name and set of issns. A journal scores a point for matching
+ * the name and a point for each issn it matches. The best match is picked in a single pass, in a fixed order, so
+ * that every node picks the same journal from the same scores:
+ * <ol>
+ *     <li>the highest score</li>
+ *     <li>then the most issn matches</li>
+ *     <li>then a match on the name, an exact match ahead of the most similar name</li>
+ *     <li>then the lowest journal id, compared as a string</li>
+ * </ol>
+ */
+public class JournalScores {
+
+    //for each journal, the number of issns matched, and 1 if the name matched
+    private final Map<URI, int[]> scores = new HashMap<>();
+    //for journals which matched for having a name like the name, how alike the names are
+    private final Map<URI, Double> similarities = new HashMap<>();
+    //false if some of the lookups were given up on
+    private boolean complete = true;
+
+    /**
+     * record that a journal matched the name
+     *
+     * @param uri - the id of the journal
+     */
+    public void addNameMatch(URI uri) {
+        scores.computeIfAbsent(uri, key -> new int[2])[1] = 1;
+    }
+
+    /**
+     * record that a journal matched for having a name like the name, which counts as matching the name
+     *
+     * @param uri        - the id of the journal
+     * @param similarity - how alike the names are, from 0 to 1
+     */
+    public void addSimilarName(URI uri, double similarity) {
+        addNameMatch(uri);
+        similarities.put(uri, similarity);
+    }
+
+    /**
+     * record that a journal matched an issn
+     *
+     * @param uri - the id of the journal
+     */
+    public void addIssnMatch(URI uri) {
+        scores.computeIfAbsent(uri, key -> new int[2])[0]++;
+    }
+
+    /**
+     * record that some of the lookups were given up on, so that these scores may not be the whole story
+     */
+    public void setIncomplete() {
+        complete = false;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isEmpty() {
+        return scores.isEmpty();
+    }
+
+    /**
+     * @return the score of each matching journal
+     */
+    public Map<URI, Integer> totals() {
+        Map<URI, Integer> totals = new HashMap<>();
+        scores.forEach((uri, score) -> totals.put(uri, score[0] + score[1]));
+        return totals;
+    }
+
+    /**
+     * @return the id of the best matching journal, or null if none matches
+     */
+    public URI best() {
+        URI best = null;
+        int[] bestScore = null;
+        for (Map.Entry<URI, int[]> entry : scores.entrySet()) {
+            if (best == null || better(entry.getValue()[0], nameMatch(entry.getKey()), entry.getKey(),
+                                       bestScore[0], nameMatch(best), best)) {
+                best = entry.getKey();
+                bestScore = entry.getValue();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * whether one journal is a better match than another, in the order described above
+     *
+     * @param issnMatches     - the number of issns the journal matched
+     * @param nameMatch       - whether the journal matched the name
+     * @param uri             - the id of the journal
+     * @param bestIssnMatches - the number of issns the other journal matched
+     * @param bestNameMatch   - whether the other journal matched the name
+     * @param bestUri         - the id of the other journal
+     * @return true if the journal is the better match
+     */
+    static boolean better(int issnMatches, boolean nameMatch, URI uri,
+                          int bestIssnMatches, boolean bestNameMatch, URI bestUri) {
+        return better(issnMatches, nameMatch ? 1 : 0, uri, bestIssnMatches, bestNameMatch ? 1 : 0, bestUri);
+    }
+
+    /**
+     * whether one journal is a better match than another, in the order described above, where a name matched for
+     * being similar ranks by its similarity, below an exact match
+     *
+     * @param issnMatches     - the number of issns the journal matched
+     * @param nameMatch       - 1 if the journal matched the name, the similarity if it has a similar name, else 0
+     * @param uri             - the id of the journal
+     * @param bestIssnMatches - the number of issns the other journal matched
+     * @param bestNameMatch   - the same, for the other journal
+     * @param bestUri         - the id of the other journal
+     * @return true if the journal is the better match
+     */
+    static boolean better(int issnMatches, double nameMatch, URI uri,
+                          int bestIssnMatches, double bestNameMatch, URI bestUri) {
+        int score = issnMatches + (nameMatch > 0 ? 1 : 0);
+        int bestScore = bestIssnMatches + (bestNameMatch > 0 ? 1 : 0);
+        if (score != bestScore) {
+            return score > bestScore;
+        }
+        if (issnMatches != bestIssnMatches) {
+            return issnMatches > bestIssnMatches;
+        }
+        if (nameMatch != bestNameMatch) {
+            return nameMatch > bestNameMatch;
+        }
+        return uri.toString().compareTo(bestUri.toString()) < 0;
+    }
+
+    /**
+     * @param uri - the id of a matching journal
+     * @return 1 if the journal matched the name, the similarity if it has a similar name, else 0
+     */
+    private double nameMatch(URI uri) {
+        if (scores.get(uri)[1] == 0) {
+            return 0;
+        }
+        return similarities.getOrDefault(uri, 1.0);
+    }
+
+    /**
+     * @return the matching journals and their scores, best first, for explaining a match
+     */
+    JsonArray explain() {
+        List<URI> ranked = new ArrayList<>(scores.keySet());
+        ranked.sort((a, b) -> {
+            if (a.equals(b)) {
+                return 0;
+            }
+            return better(scores.get(a)[0], nameMatch(a), a, scores.get(b)[0], nameMatch(b), b) ? -1 : 1;
+        });
+        JsonArrayBuilder journals = Json.createArrayBuilder();
+        for (URI uri : ranked) {
+            int[] score = scores.get(uri);
+            JsonObjectBuilder journal = Json.createObjectBuilder()
+                                            .add("journal-id", uri.toString())
+                                            .add("score", score[0] + score[1])
+                                            .add("issn-matches", score[0])
+                                            .add("name-match", score[1] == 1);
+            if (similarities.containsKey(uri)) {
+                journal.add("name-similarity", similarities.get(uri));
+            }
+            journals.add(journal);
+        }
+        return journals.build();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.dataconservancy.pass.model.Journal;
+
+/**
+ * A bounded cache of the state of PASS journals, so that a request for a journal which already has all of its issns
+ * need not read the journal from PASS. Each journal is held with the version tag (the Fedora ETag) it was read with,
+ * so that an update made from a cached journal is conditional on PASS still holding that version. A journal we have
+ * updated ourselves is held without a version tag, since we do not know the version our update made; it must be read
+ * again before it is updated again. Entries expire after a configurable time to live, so that changes made to
+ * journals by others are picked up, and the least recently used entry is evicted when the cache is full. Journals
+ * are copied in and out, so callers may change what they are given.
+ */
+public class JournalStateCache {
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LongSupplier clock;
+
+    private final Map<URI, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries - the maximum number of journals to hold; 0 disables the cache
+     * @param ttl        - how long to keep a journal, in ms
+     */
+    public JournalStateCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, System::currentTimeMillis);
+    }
+
+    JournalStateCache(int maxEntries, long ttl, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<URI, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, JournalStateCache.Entry> eldest) {
+                if (size() > JournalStateCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * look up the state of a journal
+     *
+     * @param uri - the id of the journal in PASS
+     * @return a copy of the journal, or null if we have no current state for it
+     */
+    public Journal get(URI uri) {
+        synchronized (entries) {
+            Entry entry = entries.get(uri);
+            if (entry != null && entry.expires > clock.getAsLong()) {
+                hits.increment();
+                return new Journal(entry.journal);
+            }
+            if (entry != null) {
+                entries.remove(uri);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * record the state of a journal, as read from or written to PASS
+     *
+     * @param journal - the journal, with its PASS id, and the version tag it was read with if it is known
+     */
+    public void put(Journal journal) {
+        if (maxEntries <= 0 || ttl <= 0 || journal == null || journal.getId() == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(journal.getId(), new Entry(new Journal(journal), clock.getAsLong() + ttl));
+        }
+    }
+
+    /**
+     * drop the state of a journal which has turned out to be out of date
+     *
+     * @param uri - the id of the journal in PASS
+     */
+    public void invalidate(URI uri) {
+        synchronized (entries) {
+            if (entries.remove(uri) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the cache counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        return Json.createObjectBuilder()
+                   .add("size", size())
+                   .add("max-size", maxEntries)
+                   .add("hits", hits.sum())
+                   .add("misses", misses.sum())
+                   .add("evictions", evictions.sum())
+                   .add("invalidations", invalidations.sum())
+                   .build();
+    }
+
+    private static class Entry {
+        private final Journal journal;
+        private final long expires;
+
+        Entry(Journal journal, long expires) {
+            this.journal = journal;
+            this.expires = expires;
+        }
+    }
+}
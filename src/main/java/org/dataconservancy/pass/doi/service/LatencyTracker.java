@@ -0,0 +1,70 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls to a remote service, so that we can tell what a slow call looks
+ * like. Only a fixed number of samples is kept, so percentiles follow the service as it speeds up or slows down.
+ */
+public class LatencyTracker {
+
+    private final long[] samples;
+    private final int minSamples;
+
+    //guarded by this
+    private int next;
+    private int count;
+
+    /**
+     * @param size       - the number of recent samples to keep
+     * @param minSamples - the number of samples needed before we will give a percentile
+     */
+    public LatencyTracker(int size, int minSamples) {
+        this.samples = new long[size];
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * record the latency of a call
+     *
+     * @param latency - the latency, in ms
+     */
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * @param percentile - the percentile wanted, between 0 and 100
+     * @return the latency at that percentile of the recent samples, in ms; or -1 if we do not have enough samples
+     */
+    public long percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < minSamples || count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
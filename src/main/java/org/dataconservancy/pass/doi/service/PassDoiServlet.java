@@ -16,29 +16,63 @@
  */
 package org.dataconservancy.pass.doi.service;
 
-import static java.lang.Thread.sleep;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.BufferedReader;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
-import javax.json.stream.JsonParsingException;
+import javax.json.JsonString;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -46,50 +80,266 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import okhttp3.Call;
-import okhttp3.HttpUrl;
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import okhttp3.Protocol;
 import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.client.PassClientFactory;
 import org.dataconservancy.pass.client.PassJsonAdapter;
 import org.dataconservancy.pass.client.adapter.PassJsonAdapterBasic;
+import org.dataconservancy.pass.client.fedora.UpdateConflictException;
 import org.dataconservancy.pass.model.Journal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@WebServlet(urlPatterns = "/journal")
+@WebServlet(urlPatterns = {"/journal", "/journal/batch", "/journal/explain", "/stats"}, asyncSupported = true)
 public class PassDoiServlet extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(PassDoiServlet.class);
 
+    private static final String NDJSON = "application/x-ndjson";
+    private static final JsonGeneratorFactory JSON_GENERATORS = Json.createGeneratorFactory(null);
+
     PassClient passClient = PassClientFactory.getPassClient();
     PassJsonAdapter json = new PassJsonAdapterBasic();
 
-    //longest time we expect it should take to create a Journal object, in ms
-    private int cachePeriod = 30000;//milliseconds
     private OkHttpClient client;
 
-    private String BASE_URL = "https://api.crossref.org/";
-    private String VERSION = "v1/";
-    private String BASIC_PREFIX = "works/";
     //some defaults
-    private String MAILTO = "pass@jhu.edu";
     private String FEDORA_INTERNAL = "http://fcrepo:8080/fcrepo/rest/";
     private String FEDORA_EXTERNAL = "https://pass.local/fcrepo/rest/";
-
-    private Set<String> activeJobs = new HashSet<>();
+    private String ELASTICSEARCH_URL = "http://localhost:9200/pass/";
+
+    //resolutions in flight, keyed by normalized doi, which concurrent requests for the same doi can join
+    private final ConcurrentMap<String, CompletableFuture<JournalResult>> activeJobs = new ConcurrentHashMap<>();
+
+    //gets Crossref works objects, from our caches or Crossref
+    CrossrefClient crossref;
+    JournalCache journalCache;
+    //the journals we have read from or written to PASS, so that they need not be read again
+    JournalStateCache journalStates;
+    ExecutorService indexExecutor;
+    //if set, journals are matched with one combined index query rather than a lookup per attribute
+    JournalMatcher journalMatcher;
+    //if set, journals are matched against this in-memory copy of the PASS journals once it has loaded
+    JournalIndex journalIndex;
+    //loads the journal index and rescans PASS to keep it current
+    ScheduledExecutorService journalIndexRefresher;
+    //how long to wait for index lookups once we have a match, in ms
+    long indexDeadline;
+    //keeps instances of the service from creating the same journal at once
+    JournalLocks journalLocks;
+    //how long to wait for another to finish creating a journal, in ms
+    long journalLockWait;
+    //adds missing issns to PASS journals behind the requests which found them; null if they are added at once
+    IssnWriteQueue issnWrites;
+    //runs the PASS stage of asynchronous requests, so that container threads are not held while it blocks
+    ExecutorService workExecutor;
+    //limits the number of asynchronous requests in progress
+    Semaphore requestPermits;
+    //how long an asynchronous request may take, in ms
+    long requestTimeout;
+    BatchResolver batchResolver;
+    //the largest number of dois we accept in a batch
+    int maxBatch;
+    //how long clients may reuse a result, in seconds
+    long maxAge;
+    //the most idle connections the http client keeps open
+    int maxIdleConnections;
+    //starts Crossref calls which have to wait their turn, retries, hedges and collected lookups
+    ScheduledExecutorService xrefScheduler;
+    //collects the index lookups of concurrent requests into combined queries; null if each makes its own
+    RequestCollector<JournalMatcher.Query, JournalScores> indexCollector;
 
 
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
+        //the default pool keeps only five idle connections, which under concurrency means a new connection (and TLS
+        //handshake) to Crossref for most calls
+        maxIdleConnections = (int) setting("PASS_DOI_SERVICE_XREF_POOL_SIZE", 32);
         OkHttpClient.Builder builder = new OkHttpClient.Builder();
-        builder.connectTimeout(30, SECONDS);
-        builder.readTimeout(30, SECONDS);
+        builder.connectTimeout(setting("PASS_DOI_SERVICE_XREF_CONNECT_TIMEOUT", 30000), MILLISECONDS);
+        builder.readTimeout(setting("PASS_DOI_SERVICE_XREF_READ_TIMEOUT", 30000), MILLISECONDS);
         builder.writeTimeout(30, SECONDS);
+        builder.connectionPool(new ConnectionPool(maxIdleConnections,
+                                                  setting("PASS_DOI_SERVICE_XREF_KEEP_ALIVE", 300), SECONDS));
+        //HTTP/2 is used where the server offers it, so that calls to a host share one connection
+        if (!Boolean.parseBoolean(System.getenv().getOrDefault("PASS_DOI_SERVICE_XREF_HTTP2", "true"))) {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
         client = builder.build();
+
+        int maxRequests = (int) setting("PASS_DOI_SERVICE_MAX_REQUESTS", 200);
+        requestPermits = new Semaphore(maxRequests);
+        requestTimeout = setting("PASS_DOI_SERVICE_REQUEST_TIMEOUT", 120000);
+        //crossref calls for asynchronous requests are queued by the dispatcher, so let it run as many as we admit
+        client.dispatcher().setMaxRequests(maxRequests);
+        client.dispatcher().setMaxRequestsPerHost((int) setting("PASS_DOI_SERVICE_XREF_MAX_REQUESTS_PER_HOST",
+                                                                maxRequests));
+        xrefScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "crossref-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger workThreads = new AtomicInteger();
+        workExecutor = Executors.newFixedThreadPool((int) setting("PASS_DOI_SERVICE_WORK_THREADS", 16), r -> {
+            Thread t = new Thread(r, "journal-resolver-" + workThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        crossref = new CrossrefClient(client, new CrossrefCache(
+            (int) setting("PASS_DOI_SERVICE_XREF_CACHE_SIZE", 1000),
+            SECONDS.toMillis(setting("PASS_DOI_SERVICE_XREF_CACHE_TTL", 3600)),
+            SECONDS.toMillis(setting("PASS_DOI_SERVICE_XREF_CACHE_NEGATIVE_TTL", 300)),
+            SECONDS.toMillis(setting("PASS_DOI_SERVICE_XREF_CACHE_STALE_TTL", 86400))), xrefScheduler);
+        int rateLimit = (int) setting("PASS_DOI_SERVICE_XREF_RATE_LIMIT", 50);
+        if (rateLimit > 0) {
+            crossref.limiter = new CrossrefRateLimiter(rateLimit,
+                                                       setting("PASS_DOI_SERVICE_XREF_RATE_INTERVAL", 1000),
+                                                       setting("PASS_DOI_SERVICE_XREF_RATE_MAX_WAIT", 5000));
+        }
+        crossref.retries = (int) setting("PASS_DOI_SERVICE_XREF_RETRIES", 2);
+        crossref.baseBackoff = setting("PASS_DOI_SERVICE_XREF_RETRY_BACKOFF", 200);
+        crossref.maxBackoff = setting("PASS_DOI_SERVICE_XREF_RETRY_MAX_BACKOFF", 5000);
+        crossref.hedging = Boolean.parseBoolean(System.getenv("PASS_DOI_SERVICE_XREF_HEDGE"));
+        crossref.bulkSize = (int) Math.min(setting("PASS_DOI_SERVICE_XREF_BULK_SIZE", 50), 100);
+        int retryBudget = (int) setting("PASS_DOI_SERVICE_XREF_RETRY_BUDGET", 10);
+        if (crossref.hedging && retryBudget <= 0) {
+            //unbudgeted hedges could double the load on a struggling Crossref
+            LOG.error("Hedging Crossref calls needs a PASS_DOI_SERVICE_XREF_RETRY_BUDGET above 0; not hedging");
+            crossref.hedging = false;
+        }
+        if (retryBudget > 0 && (crossref.retries > 0 || crossref.hedging)) {
+            //extra calls may be at most this percentage of the calls we make, after an initial allowance
+            crossref.retryBudget = new RetryBudget(retryBudget / 100.0, 10);
+        }
+        int breakerFailures = (int) setting("PASS_DOI_SERVICE_XREF_BREAKER_FAILURES", 5);
+        if (breakerFailures > 0) {
+            crossref.breaker = new CircuitBreaker("Crossref", breakerFailures,
+                                                  setting("PASS_DOI_SERVICE_XREF_BREAKER_OPEN", 30000));
+        }
+
+        journalCache = new JournalCache((int) setting("PASS_DOI_SERVICE_JOURNAL_CACHE_SIZE", 10000),
+                                        SECONDS.toMillis(setting("PASS_DOI_SERVICE_JOURNAL_CACHE_TTL", 3600)));
+        journalStates = new JournalStateCache((int) setting("PASS_DOI_SERVICE_JOURNAL_STATE_CACHE_SIZE", 10000),
+                                              SECONDS.toMillis(setting("PASS_DOI_SERVICE_JOURNAL_STATE_CACHE_TTL",
+                                                                       600)));
+        long lockRemember = SECONDS.toMillis(setting("PASS_DOI_SERVICE_JOURNAL_LOCK_REMEMBER", 900));
+        journalLocks = new InMemoryJournalLocks(lockRemember);
+        journalLockWait = setting("PASS_DOI_SERVICE_JOURNAL_LOCK_WAIT", 30000);
+        String lockDirectory = System.getenv("PASS_DOI_SERVICE_JOURNAL_LOCK_DIR");
+        if (lockDirectory != null) {
+            try {
+                journalLocks = new FileJournalLocks(Paths.get(lockDirectory),
+                                                    setting("PASS_DOI_SERVICE_JOURNAL_LOCK_LEASE", 60000),
+                                                    lockRemember);
+            } catch (IOException e) {
+                LOG.error("Could not open the journal lock directory " + lockDirectory + "; journals will only be " +
+                          "locked within this instance", e);
+            }
+        }
+
+        AtomicInteger indexThreads = new AtomicInteger();
+        indexExecutor = Executors.newFixedThreadPool((int) setting("PASS_DOI_SERVICE_INDEX_THREADS", 8), r -> {
+            Thread t = new Thread(r, "journal-lookup-" + indexThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        indexDeadline = setting("PASS_DOI_SERVICE_INDEX_DEADLINE", 5000);
+        batchResolver = new BatchResolver(this, (int) setting("PASS_DOI_SERVICE_BATCH_XREF_CONCURRENCY", 8),
+                                          (int) setting("PASS_DOI_SERVICE_BATCH_PASS_CONCURRENCY", 4),
+                                          (int) setting("PASS_DOI_SERVICE_MAX_BATCHES", 4));
+        maxBatch = (int) setting("PASS_DOI_SERVICE_MAX_BATCH", 10000);
+        maxAge = setting("PASS_DOI_SERVICE_MAX_AGE", 3600);
+        String indexUrl = (System.getenv("PASS_ELASTICSEARCH_URL") != null ? System.getenv(
+            "PASS_ELASTICSEARCH_URL") : ELASTICSEARCH_URL).split(",")[0].trim();
+        if (Boolean.parseBoolean(System.getenv("PASS_DOI_SERVICE_BATCHED_INDEX_QUERY"))) {
+            journalMatcher = new JournalMatcher(client, indexUrl, (int) setting("PASS_ELASTICSEARCH_LIMIT", 100));
+        }
+        if (Boolean.parseBoolean(System.getenv("PASS_DOI_SERVICE_JOURNAL_INDEX"))) {
+            JournalIndex index = new JournalIndex(client, indexUrl,
+                                                  (int) setting("PASS_DOI_SERVICE_JOURNAL_INDEX_PAGE_SIZE", 1000),
+                                                  setting("PASS_DOI_SERVICE_NAME_SIMILARITY", 0) / 100.0,
+                                                  setting("PASS_DOI_SERVICE_NAME_SIMILARITY_BUDGET", 50));
+            journalIndexRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-index-refresher");
+                t.setDaemon(true);
+                return t;
+            });
+            //load the index in the background; until it has loaded, journals are matched against the PASS index
+            journalIndexRefresher.scheduleWithFixedDelay(() -> {
+                try {
+                    index.refresh();
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not scan the PASS index for journals", e);
+                }
+            }, 0, setting("PASS_DOI_SERVICE_JOURNAL_INDEX_REFRESH", 900), SECONDS);
+            journalIndex = index;
+        }
+        long collectWindow = setting("PASS_DOI_SERVICE_COLLECT_WINDOW", 0);
+        int collectSize = (int) setting("PASS_DOI_SERVICE_COLLECT_SIZE", 20);
+        if (collectWindow > 0 && collectSize > 1) {
+            crossref.collect(collectWindow, collectSize);
+            if (journalMatcher != null) {
+                indexCollector = new RequestCollector<>(collectWindow, collectSize, xrefScheduler, this::scoreBatch);
+            }
+        }
+
+        String issnWriteDirectory = System.getenv("PASS_DOI_SERVICE_ISSN_WRITE_DIR");
+        if (issnWriteDirectory != null) {
+            try {
+                issnWrites = new IssnWriteQueue(Paths.get(issnWriteDirectory), passClient,
+                                                setting("PASS_DOI_SERVICE_ISSN_WRITE_DELAY", 1000),
+                                                (int) setting("PASS_DOI_SERVICE_ISSN_WRITE_BATCH", 50),
+                                                (int) setting("PASS_DOI_SERVICE_ISSN_WRITE_ATTEMPTS", 10));
+            } catch (IOException e) {
+                LOG.error("Could not open the issn write queue in " + issnWriteDirectory + "; issns will be added " +
+                          "to journals as they are found", e);
+            }
+        }
+
+        String storeDirectory = System.getenv("PASS_DOI_SERVICE_XREF_STORE_DIR");
+        if (storeDirectory != null) {
+            try {
+                CrossrefStore store = new CrossrefStore(Paths.get(storeDirectory),
+                                                        SECONDS.toMillis(setting("PASS_DOI_SERVICE_XREF_STORE_TTL",
+                                                                                 DAYS.toSeconds(30))));
+                boolean compact = Boolean.parseBoolean(System.getenv("PASS_DOI_SERVICE_XREF_STORE_COMPACT"));
+                //index the store in the background so that startup time does not depend on its size
+                Thread warmer = new Thread(() -> store.warm(compact), "crossref-store-warmer");
+                warmer.setDaemon(true);
+                warmer.start();
+                crossref.store = store;
+            } catch (IOException e) {
+                LOG.error("Could not open the Crossref store in " + storeDirectory + "; continuing without it", e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        workExecutor.shutdownNow();
+        indexExecutor.shutdownNow();
+        batchResolver.shutdown();
+        xrefScheduler.shutdownNow();
+        if (journalIndexRefresher != null) {
+            journalIndexRefresher.shutdownNow();
+        }
+        if (issnWrites != null) {
+            try {
+                issnWrites.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close the issn write queue", e);
+            }
+        }
+        try {
+            crossref.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close the Crossref store", e);
+        }
+        super.destroy();
     }
 
     @Override
@@ -99,6 +349,15 @@ public class PassDoiServlet extends HttpServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("utf-8");
 
+        if ("/stats".equals(request.getServletPath())) {
+            writeStats(response);
+            return;
+        }
+        if ("/journal/explain".equals(request.getServletPath())) {
+            writeExplanation(request.getParameter("doi"), response);
+            return;
+        }
+
         LOG.info("Servicing new request ... ");
         LOG.debug("Context path: " + request.getContextPath() + "; query string " + request.getQueryString());
 
@@ -107,54 +366,449 @@ public class PassDoiServlet extends HttpServlet {
         String doi = request.getParameter("doi");
 
         //stage 1: verify doi is valid
-        if (verify(doi) == null) {//do not have have a valid xref doi
-            try (OutputStream out = response.getOutputStream()) {
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", "Supplied DOI is not in valid Crossref format.")
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(400);
-                return;
+        String verifiedDoi = verify(doi);
+        if (verifiedDoi == null) {//do not have have a valid xref doi
+            writeResult(response, JournalResult.error(400, "Supplied DOI is not in valid Crossref format."));
+            return;
+        }
+
+        //a client which does not want the crossref record lets us skip building it
+        Set<JournalResult.Field> fields;
+        try {
+            fields = JournalResult.Field.parse(request.getParameter("fields"));
+        } catch (IllegalArgumentException e) {
+            writeResult(response, JournalResult.error(400, e.getMessage()));
+            return;
+        }
+        boolean full = fields.contains(JournalResult.Field.CROSSREF);
+
+        //a client revalidating a result we can vouch for from our caches needs no call to Crossref or PASS
+        boolean conditional = request.getHeader("If-None-Match") != null ||
+                              request.getHeader("If-Modified-Since") != null;
+        JournalResult cached = conditional ? cachedResult(verifiedDoi, fields) : null;
+        if (cached != null && isNotModified(request, cached, fields)) {
+            LOG.debug("Result for " + verifiedDoi + " not modified");
+            writeResult(request, response, cached, fields);
+            return;
+        }
+
+        //stage 2: join an active request for this doi, or start one which later requests may join
+        if (!request.isAsyncSupported()) {
+            writeResult(request, response, resolveShared(verifiedDoi, full), fields);
+            return;
+        }
+
+        if (!requestPermits.tryAcquire()) {
+            LOG.warn("Turning away request for " + verifiedDoi + "; too many requests in progress");
+            writeResult(response, JournalResult.error(503, "The service is busy; try again later."));
+            return;
+        }
+
+        //release the container thread while we wait on Crossref and PASS
+        AsyncContext context = request.startAsync();
+        context.setTimeout(requestTimeout);
+        AtomicBoolean finished = new AtomicBoolean();
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                String message = "Timed out resolving DOI " + verifiedDoi;
+                LOG.warn(message);
+                finish(context, finished, JournalResult.error(504, message), fields);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                LOG.warn("Error servicing request for " + verifiedDoi, event.getThrowable());
+                finish(context, finished, null, fields);
             }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        resolveAsync(verifiedDoi, full).whenComplete((result, e) -> {
+            if (e != null) {
+                LOG.error("Error resolving DOI " + verifiedDoi, e);
+                result = JournalResult.error(500, "There was an error resolving DOI " + verifiedDoi);
+            }
+            finish(context, finished, result, fields);
+        });
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+
+        if (!"/journal/batch".equals(request.getServletPath())) {
+            super.doPost(request, response);
+            return;
         }
 
-        //stage 2: check cache map for existence of doi
-        //put doi on map if absent
-        if (activeJobs.contains(doi)) {
-            try (OutputStream out = response.getOutputStream()) {
-                String message = "There is already an active request for " + doi;
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", message + "; try again later.")
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(429);
-                LOG.info(message);
-                return;
+        response.setContentType("application/json");
+        response.setCharacterEncoding("utf-8");
+
+        List<String> dois;
+        try {
+            dois = readBatch(request);
+        } catch (JsonException | ClassCastException e) {
+            writeResult(response, JournalResult.error(400, "Supply a JSON array of DOIs, or one DOI per line."));
+            return;
+        }
+        if (dois.size() > maxBatch) {
+            writeResult(response, JournalResult.error(413, "A batch may contain at most " + maxBatch + " DOIs."));
+            return;
+        }
+        boolean async = request.isAsyncSupported();
+        if (async && !requestPermits.tryAcquire()) {
+            LOG.warn("Turning away batch of " + dois.size() + " DOIs; too many requests in progress");
+            writeResult(response, JournalResult.error(503, "The service is busy; try again later."));
+            return;
+        }
+        LOG.info("Servicing batch of " + dois.size() + " DOIs");
+
+        //results are written as they are ready, in completion order: either as a JSON array, or, if the client
+        //asks for it, as newline delimited JSON
+        boolean ndjson = wantsNdjson(request);
+        if (ndjson) {
+            response.setContentType(NDJSON);
+        }
+        response.setStatus(200);
+        Writer out = new OutputStreamWriter(response.getOutputStream(), UTF_8);
+        JsonGenerator array = ndjson ? null : JSON_GENERATORS.createGenerator(out).writeStartArray();
+        BiConsumer<String, JournalResult> sink = (doi, result) -> {
+            try {
+                if (ndjson) {
+                    //each line is a complete JSON document, so needs a generator of its own
+                    JsonGenerator line = JSON_GENERATORS.createGenerator(new FilterWriter(out) {
+                        @Override
+                        public void close() {
+                        }
+                    });
+                    result.write(line, doi);
+                    line.close();
+                    out.write('\n');
+                    out.flush();
+                } else {
+                    result.write(array, doi);
+                    array.flush();
+                }
+            } catch (IOException | JsonException e) {
+                throw new UncheckedIOException(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        };
+
+        if (!async) {
+            try {
+                batchResolver.resolve(dois, sink);
+                finishBatch(out, array, null);
+            } catch (RuntimeException e) {
+                finishBatch(out, array, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finishBatch(out, array, e);
+            }
+            return;
+        }
+
+        //release the container thread while the batch runs; the results are written from the batch's thread
+        AsyncContext context = request.startAsync();
+        //results are written as they come in, so a batch as a whole has no deadline
+        context.setTimeout(0);
+        batchResolver.submit(dois, sink).whenComplete((v, e) -> {
+            requestPermits.release();
+            finishBatch(out, array, e);
+            try {
+                context.complete();
+            } catch (IllegalStateException e2) {
+                LOG.warn("Could not complete the batch response", e2);
             }
+        });
+    }
 
-        } else {//this DOI is not actively being processed
-            //let's temporarily prohibit new requests for this DOI
-            activeJobs.add(doi);
-            Thread t = new Thread(new ExpiringLock(doi, cachePeriod));
-            t.start();
+    /**
+     * end the response to a batch
+     *
+     * @param out   - the writer for the response
+     * @param array - the generator writing the results as a JSON array; null for newline delimited JSON
+     * @param e     - what stopped the batch early, if anything
+     */
+    private void finishBatch(Writer out, JsonGenerator array, Throwable e) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        if (cause instanceof UncheckedIOException) {
+            LOG.warn("Batch client went away", cause.getCause());
+        } else if (cause instanceof InterruptedException) {
+            LOG.warn("Interrupted while servicing batch");
+        } else if (cause != null) {
+            LOG.error("Error servicing batch", cause);
         }
+        try {
+            if (array != null && cause == null) {
+                array.writeEnd().close();
+            }
+            out.close();
+        } catch (IOException | JsonException e2) {
+            LOG.warn("Could not finish the batch response", e2);
+        }
+    }
 
-        //stage 3: try to get crossref record, catch errors first, and halt processing
-        JsonObject xrefJsonObject = retrieveXrefMetdata(doi);
+    /**
+     * whether a client has asked for newline delimited JSON, either with an {@code Accept} header of
+     * {@code application/x-ndjson} or a {@code format=ndjson} parameter
+     *
+     * @param request - the servlet request
+     * @return true if the response should be newline delimited JSON
+     */
+    private boolean wantsNdjson(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return "ndjson".equals(request.getParameter("format")) || (accept != null && accept.contains(NDJSON));
+    }
+
+    /**
+     * read the dois for a batch from a request body, either a JSON array of strings, or (for a content type of
+     * {@code application/x-ndjson} or {@code text/plain}) one doi per line, quoted or not
+     *
+     * @param request - the servlet request
+     * @return the dois, in order
+     * @throws IOException if the body could not be read
+     */
+    private List<String> readBatch(HttpServletRequest request) throws IOException {
+        List<String> dois = new ArrayList<>();
+        String contentType = request.getContentType() == null ? "" : request.getContentType();
+        if (contentType.startsWith(NDJSON) || contentType.startsWith("text/plain")) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(),
+                                                                                  UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith("\"")) {
+                        try (JsonReader jsonReader = Json.createReader(new StringReader("[" + line + "]"))) {
+                            line = jsonReader.readArray().getString(0);
+                        }
+                    }
+                    if (!line.isEmpty()) {
+                        dois.add(line);
+                    }
+                }
+            }
+        } else {
+            try (JsonReader reader = Json.createReader(request.getInputStream())) {
+                for (JsonString doi : reader.readArray().getValuesAs(JsonString.class)) {
+                    dois.add(doi.getString());
+                }
+            }
+        }
+        return dois;
+    }
+
+    /**
+     * complete an asynchronous request, unless it has already been completed (say, by timing out)
+     *
+     * @param context  - the async context of the request
+     * @param finished - whether the request has been completed
+     * @param result   - the result to write, or null if nothing can be written
+     * @param fields   - the fields of the result to write
+     */
+    private void finish(AsyncContext context, AtomicBoolean finished, JournalResult result,
+                        Set<JournalResult.Field> fields) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        requestPermits.release();
+        try {
+            if (result != null) {
+                writeResult((HttpServletRequest) context.getRequest(), (HttpServletResponse) context.getResponse(),
+                            result, fields);
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOG.warn("Could not write the response", e);
+        } finally {
+            context.complete();
+        }
+    }
+
+    /**
+     * Resolve a DOI, coalescing concurrent requests for the same DOI into a single resolution. The first caller
+     * for a DOI does the work; callers arriving while it is in flight wait for, and share, its result.
+     *
+     * @param doi - the verified doi
+     * @return the result of resolving the doi
+     */
+    JournalResult resolveShared(String doi) {
+        return resolveShared(doi, true);
+    }
+
+    /**
+     * Resolve a DOI as for {@link #resolveShared(String)}, keeping only the journal fields of the Crossref record
+     * unless the whole record is wanted
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the result should carry the whole Crossref record
+     * @return the result of resolving the doi
+     */
+    JournalResult resolveShared(String doi, boolean full) {
+        try {
+            return coalesce(doi, full, d -> CompletableFuture.completedFuture(resolve(d, crossref.metadata(d, full))))
+                .join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Resolve a DOI without blocking the calling thread, coalescing concurrent requests as for
+     * {@link #resolveShared(String)}. The Crossref call is made asynchronously, and the PASS stage is run on the
+     * work executor.
+     *
+     * @param doi - the verified doi
+     * @return the result of resolving the doi, when it is available
+     */
+    CompletableFuture<JournalResult> resolveAsync(String doi) {
+        return resolveAsync(doi, true);
+    }
+
+    /**
+     * Resolve a DOI as for {@link #resolveAsync(String)}, keeping only the journal fields of the Crossref record
+     * unless the whole record is wanted
+     *
+     * @param doi  - the verified doi
+     * @param full - true if the result should carry the whole Crossref record
+     * @return the result of resolving the doi, when it is available
+     */
+    CompletableFuture<JournalResult> resolveAsync(String doi, boolean full) {
+        return coalesce(doi, full, d -> crossref.metadataAsync(d, full).thenApplyAsync(xref -> resolve(d, xref),
+                                                                                  workExecutor));
+    }
+
+    /**
+     * start a resolution for a DOI, or join the one already in flight for it. A resolution which keeps only the
+     * journal fields of the Crossref record cannot serve a request for the whole record, so the two are kept apart.
+     *
+     * @param doi        - the verified doi
+     * @param full       - true if the result should carry the whole Crossref record
+     * @param resolution - starts a resolution
+     * @return the result of the resolution, when it is available
+     */
+    private CompletableFuture<JournalResult> coalesce(String doi, boolean full,
+                                                      Function<String, CompletableFuture<JournalResult>> resolution) {
+        String key = full ? normalize(doi) : normalize(doi) + " journal";
+        CompletableFuture<JournalResult> job = new CompletableFuture<>();
+        CompletableFuture<JournalResult> activeJob = activeJobs.putIfAbsent(key, job);
+
+        if (activeJob != null) {
+            LOG.info("Joining active request for " + doi);
+            return activeJob;
+        }
+
+        CompletableFuture<JournalResult> resolved;
+        try {
+            resolved = resolution.apply(doi);
+        } catch (RuntimeException e) {
+            resolved = new CompletableFuture<>();
+            resolved.completeExceptionally(e);
+        }
+        resolved.whenComplete((result, e) -> {
+            //later requests should start afresh, so we stop sharing this job before completing it
+            activeJobs.remove(key, job);
+            if (e != null) {
+                job.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            } else {
+                job.complete(result);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Resolve a DOI to a PASS journal: get the Crossref record, and find or create the corresponding
+     * journal in PASS
+     *
+     * @param doi - the verified doi
+     * @return the result of resolving the doi
+     */
+    JournalResult resolve(String doi) {
+        return resolve(doi, crossref.metadata(doi, true));
+    }
+
+    /**
+     * Resolve a DOI to a PASS journal, given its Crossref record: find or create the corresponding journal in PASS
+     *
+     * @param doi            - the verified doi
+     * @param xrefJsonObject - the Crossref works object for the doi, as for {@link CrossrefClient#retrieve}
+     * @return the result of resolving the doi
+     */
+    JournalResult resolve(String doi, JsonObject xrefJsonObject) {
+        return resolve(doi, xrefJsonObject, this::updateJournalInPass);
+    }
+
+    /**
+     * Resolve a DOI to a PASS journal, given its Crossref record, using the supplied function to find or create the
+     * corresponding journal in PASS
+     *
+     * @param doi            - the verified doi
+     * @param xrefJsonObject - the Crossref works object for the doi, as for {@link CrossrefClient#retrieve}
+     * @param journalUpdater - finds or creates the journal in PASS, as for {@link #updateJournalInPass(Journal)}
+     * @return the result of resolving the doi
+     */
+    JournalResult resolve(String doi, JsonObject xrefJsonObject, Function<Journal, Journal> journalUpdater) {
+        //stage 3: check the crossref record, catch errors first, and halt processing
+        JournalResult xrefError = xrefError(doi, xrefJsonObject);
+        if (xrefError != null) {
+            return xrefError;
+        }
+
+        //have a non-empty string to process
+        LOG.debug("Building pass journal");
+        //we probably have something JSONy at this point. Let's build a journal object from it
+        Journal journal = buildPassJournal(xrefJsonObject);
+        LOG.debug("Comparing journal object with possible PASS version");
+        //and compare it with what we already have in PASS, updating PASS if necessary
+
+        Journal updatedJournal = journalUpdater.apply(journal);
+
+        if (updatedJournal == null) {//journal id is null - this should never happen unless Crosssref journal
+            //is insufficient, for example, if a book doi ws supplied which has no issns
+            String message = "Insufficient information to locate or specify a journal entry.";
+            LOG.info(message);
+            return JournalResult.error(422, message);
+        }
+
+        LOG.info("Returning result for DOI " + doi);
+        JournalResult result = JournalResult.success(updatedJournal.getId().toString(),
+                                                     updatedJournal.getJournalName(), updatedJournal.getIssns(),
+                                                     xrefJsonObject);
+        long staleness = crossref.staleness(doi, xrefJsonObject);
+        if (staleness >= 0) {
+            return result.withStaleness(staleness);
+        }
+        return result;
+    }
+
+    /**
+     * check the Crossref record for a doi
+     *
+     * @param doi            - the verified doi
+     * @param xrefJsonObject - the Crossref works object for the doi, as for {@link CrossrefClient#retrieve}
+     * @return the error result if there is no usable record, or null if there is
+     */
+    private JournalResult xrefError(String doi, JsonObject xrefJsonObject) {
         if (xrefJsonObject == null) {
-            try (OutputStream out = response.getOutputStream()) {
-                String message = "There was an error getting the metadata from Crossref for " + doi;
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", message)
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(500);
+            if (crossref.isUnavailable()) {
+                String message = "Crossref is unavailable, and we have no record for " + doi + "; try again later.";
                 LOG.info(message);
+                return JournalResult.error(503, message);
             }
+            String message = "There was an error getting the metadata from Crossref for " + doi;
+            LOG.info(message);
+            return JournalResult.error(500, message);
         } else if (xrefJsonObject.getJsonString("error") != null) {
             int responseCode;
             String message;
-            if (xrefJsonObject.getString("error").equals("Resource not found.")) {
+            if (CrossrefCache.isNotFound(xrefJsonObject)) {
                 responseCode = 404;
                 message = "The resource for DOI " + doi + " could not be found on Crossref.";
             } else {
@@ -162,96 +816,241 @@ public class PassDoiServlet extends HttpServlet {
                 message = "A record for this resource could not be found on Crossref: " +
                           xrefJsonObject.getJsonString("error");
             }
-            try (OutputStream out = response.getOutputStream()) {
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", message)
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(responseCode);
-                LOG.info(message);
-            }
-        } else {//have a non-empty string to process
-            LOG.debug("Building pass journal");
-            //we probably have something JSONy at this point. Let's build a journal object from it
-            Journal journal = buildPassJournal(xrefJsonObject);
-            LOG.debug("Comparing journal object with possible PASS version");
-            //and compare it with what we already have in PASS, updating PASS if necessary
+            LOG.info(message);
+            return JournalResult.error(responseCode, message);
+        }
+        return null;
+    }
 
-            Journal updatedJournal = updateJournalInPass(journal);
+    /**
+     * explain how the journal for a doi is matched: the journal built from its Crossref record, how journals are
+     * being matched, and the score of each matching journal, best first. Nothing is written to PASS, and the journal
+     * cache is consulted but not changed.
+     *
+     * @param doi      - the doi, as supplied by the client
+     * @param response - the servlet response
+     * @throws IOException if the response could not be written
+     */
+    private void writeExplanation(String doi, HttpServletResponse response) throws IOException {
+        String verifiedDoi = verify(doi);
+        if (verifiedDoi == null) {
+            writeResult(response, JournalResult.error(400, "Supplied DOI is not in valid Crossref format."));
+            return;
+        }
+        JsonObject xrefJsonObject = crossref.metadata(verifiedDoi, false);
+        JournalResult xrefError = xrefError(verifiedDoi, xrefJsonObject);
+        if (xrefError != null) {
+            writeResult(response, xrefError);
+            return;
+        }
 
-            String journalId = null;
+        Journal journal = buildPassJournal(xrefJsonObject);
+        String name = journal.getJournalName();
+        List<String> issns = journal.getIssns();
+        JournalScores scores = scoreJournals(name, issns);
+        URI best = scores.best();
+        URI cached = journalCache.get(name, issns);
+
+        JsonObjectBuilder explanation = Json.createObjectBuilder()
+                                            .add("doi", verifiedDoi)
+                                            .add("journal-name", name == null ? "" : name)
+                                            .add("issns", Json.createArrayBuilder(issns))
+                                            .add("method", matchingMethod())
+                                            .add("complete", scores.isComplete())
+                                            .add("candidates", scores.explain());
+        if (best != null) {
+            explanation.add("best", best.toString());
+        }
+        if (cached != null) {
+            explanation.add("cached", cached.toString());
+        }
+        response.setStatus(200);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(explanation.build().toString().getBytes(UTF_8));
+        }
+    }
 
-            if (updatedJournal != null) {
-                journalId = updatedJournal.getId().toString();
-            }
+    /**
+     * write a result to the servlet response. The result is written straight to the response stream, so we do not
+     * hold a rendered copy of a (possibly large) Crossref record in memory.
+     *
+     * @param response - the servlet response
+     * @param result   - the result to write
+     * @throws IOException if the response could not be written
+     */
+    private void writeResult(HttpServletResponse response, JournalResult result) throws IOException {
+        writeResult(response, result, JournalResult.Field.DEFAULT);
+    }
 
-            if (journalId != null) {
+    /**
+     * write the requested fields of a result to the servlet response
+     *
+     * @param response - the servlet response
+     * @param result   - the result to write
+     * @param fields   - the fields to write
+     * @throws IOException if the response could not be written
+     */
+    private void writeResult(HttpServletResponse response, JournalResult result, Set<JournalResult.Field> fields)
+        throws IOException {
+        response.setStatus(result.getStatus());
+        try (JsonGenerator generator = JSON_GENERATORS.createGenerator(response.getOutputStream(), UTF_8)) {
+            result.write(generator, fields);
+        } catch (JsonException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+        }
+    }
 
-                try (OutputStream out = response.getOutputStream()) {
-                    JsonObject jsonObject = Json.createObjectBuilder()
-                                                .add("journal-id", journalId)
-                                                .add("crossref", xrefJsonObject)
-                                                .build();
+    /**
+     * write the requested fields of a result to the servlet response, as for
+     * {@link #writeResult(HttpServletResponse, JournalResult, Set)}. A successful result carries validators and
+     * caching headers, and if the client already has the current representation, we say so and send no body.
+     *
+     * @param request  - the servlet request
+     * @param response - the servlet response
+     * @param result   - the result to write
+     * @param fields   - the fields to write
+     * @throws IOException if the response could not be written
+     */
+    private void writeResult(HttpServletRequest request, HttpServletResponse response, JournalResult result,
+                             Set<JournalResult.Field> fields) throws IOException {
+        if (result.getStaleness() >= 0) {
+            response.setHeader("Warning", "110 - \"Response is Stale\"");
+            response.setHeader("Age", Long.toString(MILLISECONDS.toSeconds(result.getStaleness())));
+        }
+        if (result.isSuccess()) {
+            response.setHeader("ETag", result.getEtag(fields));
+            if (result.getLastModified() >= 0) {
+                response.setDateHeader("Last-Modified", result.getLastModified());
+            }
+            response.setHeader("Cache-Control", maxAge > 0 ? "max-age=" + maxAge : "no-cache");
+            if (isNotModified(request, result, fields)) {
+                response.setStatus(304);
+                return;
+            }
+        }
+        writeResult(response, result, fields);
+    }
 
-                    out.write(jsonObject.toString().getBytes());
-                    response.setStatus(200);
-                    LOG.info("Returning result for DOI " + doi);
-                }
-            } else {//journal id is null - this should never happen unless Crosssref journal is insufficient
-                //for example, if a book doi ws supplied which has no issns
-
-                try (OutputStream out = response.getOutputStream()) {
-                    String message = "Insufficient information to locate or specify a journal entry.";
-                    JsonObject jsonObject = Json.createObjectBuilder()
-                                                .add("error", message)
-                                                .build();
-
-                    out.write(jsonObject.toString().getBytes());
-                    response.setStatus(422);
-                    LOG.info(message);
+    /**
+     * whether a conditional request is for the representation of a result which the client already has. As HTTP
+     * requires, {@code If-Modified-Since} is only consulted if there is no {@code If-None-Match}.
+     *
+     * @param request - the servlet request
+     * @param result  - the result
+     * @param fields  - the fields of the representation
+     * @return true if the client's copy is current
+     */
+    private boolean isNotModified(HttpServletRequest request, JournalResult result, Set<JournalResult.Field> fields) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = result.getEtag(fields);
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                //weak comparison, as for If-None-Match
+                if (candidate.equals("*") || candidate.replaceFirst("^W/", "").equals(etag.replaceFirst("^W/", ""))) {
+                    return true;
                 }
             }
+            return false;
         }
-        activeJobs.remove(doi);
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        long lastModified = result.getLastModified();
+        //http dates have a resolution of a second
+        return ifModifiedSince > 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
     }
 
     /**
-     * consult crossref to get a works object for a supplied doi
+     * Put together the result for a doi from our caches alone, if we can: the Crossref record from the Crossref cache
+     * or store, and the journal it resolved to from the journal cache. The journal name and issns are only to be had
+     * from PASS, so we do not try if they are wanted.
      *
-     * @param doi - the supplied doi string, prefix trimmed if necessary
-     * @return a string representing the works object if successful; an empty string if not found; null if IO exception
+     * @param doi    - the verified doi
+     * @param fields - the fields wanted
+     * @return the result, or null if it is not all in our caches
      */
-    JsonObject retrieveXrefMetdata(String doi) {
-        String agent = System.getenv("PASS_DOI_SERVICE_MAILTO") != null ? System.getenv(
-            "PASS_DOI_SERVICE_MAILTO") : MAILTO;
+    private JournalResult cachedResult(String doi, Set<JournalResult.Field> fields) {
+        if (fields.contains(JournalResult.Field.TITLE) || fields.contains(JournalResult.Field.ISSNS)) {
+            return null;
+        }
+        JsonObject xrefJsonObject = crossref.cached(doi, fields.contains(JournalResult.Field.CROSSREF));
+        if (xrefJsonObject == null || xrefJsonObject.getJsonObject(CrossrefReader.MESSAGE) == null) {
+            return null;
+        }
+        Journal journal = buildPassJournal(xrefJsonObject);
+        URI journalUri = journalCache.get(journal.getJournalName(), journal.getIssns());
+        if (journalUri == null) {
+            return null;
+        }
+        return JournalResult.success(externalize(journalUri).toString(), null, null, xrefJsonObject);
+    }
 
-        HttpUrl.Builder urlBuilder = HttpUrl.parse(BASE_URL + VERSION + BASIC_PREFIX + doi).newBuilder();
-        String url = urlBuilder.build().toString();
-        Request okHttpRequest = new Request.Builder()
-            .url(url)
-            .addHeader("User-Agent", agent)
-            .build();
-        Call call = client.newCall(okHttpRequest);
-        JsonReader reader;
-        JsonObject xrefJsonObject;
-        String responseString = null;
+    /**
+     * write the service counters to the servlet response
+     *
+     * @param response - the servlet response
+     * @throws IOException if the response could not be written
+     */
+    private void writeStats(HttpServletResponse response) throws IOException {
+        JsonObjectBuilder stats = Json.createObjectBuilder()
+                                      .add("active-requests", activeJobs.size())
+                                      .add("available-request-permits", requestPermits.availablePermits())
+                                      .add("journal-cache", journalCache.stats())
+                                      .add("journal-state-cache", journalStates.stats())
+                                      .add("http-client", Json.createObjectBuilder()
+                                          .add("connections", client.connectionPool().connectionCount())
+                                          .add("idle-connections", client.connectionPool().idleConnectionCount())
+                                          .add("max-idle-connections", maxIdleConnections)
+                                          .add("running-calls", client.dispatcher().runningCallsCount())
+                                          .add("queued-calls", client.dispatcher().queuedCallsCount()));
+        crossref.addStats(stats);
+        if (indexCollector != null) {
+            stats.add("index-collector", indexCollector.stats());
+        }
+        if (issnWrites != null) {
+            stats.add("issn-writes", issnWrites.stats());
+        }
+        if (journalIndex != null) {
+            stats.add("journal-index", journalIndex.stats());
+        }
+        response.setStatus(200);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(stats.build().toString().getBytes(UTF_8));
+        }
+    }
 
-        try (Response okHttpResponse = call.execute()) {
-            responseString = okHttpResponse.body().string();
-            reader = Json.createReader(new StringReader(responseString));
-            xrefJsonObject = reader.readObject();
-            reader.close();
-            return xrefJsonObject;
-        } catch (JsonParsingException e) {
-            if (responseString != null) {
-                return Json.createObjectBuilder()
-                           .add("error", responseString)
-                           .build();
-            }
-        } catch (IOException e) {
-            return null;
+    /**
+     * read a numeric setting from the environment
+     *
+     * @param name         - the name of the environment variable
+     * @param defaultValue - the value to use if the variable is absent or not a number
+     * @return the setting
+     */
+    static long setting(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
         }
-        return null;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring non-numeric value " + value + " for " + name);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * DOIs are case insensitive, so we use the lower case form of a verified DOI wherever we need a key
+     *
+     * @param doi - the verified doi
+     * @return the normalized doi
+     */
+    static String normalize(String doi) {
+        return doi.toLowerCase(Locale.ROOT);
     }
 
     /**
@@ -264,7 +1063,9 @@ public class PassDoiServlet extends HttpServlet {
      */
     Journal buildPassJournal(JsonObject metadata) {
 
-        LOG.debug("JSON input (from Crossref): " + metadata.toString());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("JSON input (from Crossref): " + metadata.toString());
+        }
 
         final String XREF_MESSAGE = "message";
         final String XREF_TITLE = "container-title";
@@ -346,33 +1147,182 @@ public class PassDoiServlet extends HttpServlet {
 
         if (passJournalUri == null) {//we don't have this journal in pass yet
             if (name != null && !name.isEmpty() && issns.size() > 0) {//we have enough info to make a journal entry
-                passJournal = passClient.createAndReadResource(journal, Journal.class);
+                passJournal = createJournal(journal);
             } else {//do not have enough to create a new journal
                 LOG.debug("Not enough info for journal " + name);
                 return null;
             }
         } else { //we have a journal, let's see if we can add anything new - just issns atm. we add only if not present
-            passJournal = passClient.readResource(passJournalUri, Journal.class);
-
-            if (passJournal != null) {
-                //check to see if we can supply issns
-                if (!passJournal.getIssns().containsAll(journal.getIssns())) {
-                    List<String> newIssnList = Stream.concat(passJournal.getIssns().stream(),
-                                                             journal.getIssns().stream()).distinct()
-                                                     .collect(Collectors.toList());
-                    passJournal.setIssns(newIssnList);
-                    passClient.updateResource(passJournal);
-                }
+            passJournal = addIssns(passJournalUri, journal);
+        }
+        //externalize the internal journal id
+        passJournal.setId(externalize(passJournal.getId()));
+        LOG.debug("passJournal URI: " + passJournal.getId().toString());
+        LOG.debug("Returning journal object: " + passJournal.toString());
+        return passJournal;
+    }
 
-            } else {
-                String uhoh = "Journal URI " + passJournalUri.toString() + " was found, but the object could not be " +
-                              "retrieved. This should never happen.";
-                LOG.error(uhoh);
-                throw new RuntimeException(uhoh);
+    /**
+     * create a journal in PASS, holding the lock for its issns while we do, so that only one instance of the service
+     * creates it. If another instance created it while we waited for the lock, we use that journal instead.
+     *
+     * @param journal - the Journal object generated from Crossref metadata
+     * @return the Journal object stored in PASS
+     */
+    private Journal createJournal(Journal journal) {
+        String name = journal.getJournalName();
+        List<String> issns = journal.getIssns();
+        String key = JournalLocks.key(issns);
+        try (JournalLocks.Lease lease = journalLocks.acquire(key, journalLockWait)) {
+            if (lease == null) {
+                throw new RuntimeException("Timed out waiting for another request to create journal " + name);
+            }
+            URI created = lease.getCreated();
+            if (created != null) {
+                LOG.debug("Using journal " + created + " created by another request for " + name);
+                journalCache.put(name, issns, created);
+                return addIssns(created, journal);
             }
 
+            Journal passJournal = passClient.createAndReadResource(journal, Journal.class);
+            journalStates.put(passJournal);
+            lease.setCreated(passJournal.getId());
+            //the index may not have caught up with the new journal yet, so remember it ourselves
+            journalCache.put(name, issns, passJournal.getId());
+            if (journalIndex != null) {
+                journalIndex.put(passJournal.getId(), name, issns);
+            }
+            return passJournal;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not lock journal " + name + " for creation", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to create journal " + name, e);
         }
-        //externalize the internal journal id
+    }
+
+    /**
+     * add any issns of a journal generated from Crossref metadata which the PASS journal does not have. If there is
+     * an {@link IssnWriteQueue}, the issns are queued to be written, and the journal returned already has them.
+     *
+     * <p>The journal is taken from the {@link JournalStateCache} if it is there, so that a journal which already has
+     * all of the issns is not read from PASS at all. An update made from a cached journal is conditional on PASS
+     * still holding the version we cached; if it does not, or we do not know which version we cached, the journal is
+     * read again first.</p>
+     *
+     * @param passJournalUri - the id of the journal in PASS
+     * @param journal        - the Journal object generated from Crossref metadata
+     * @return the Journal object stored in PASS, with any issns waiting to be written
+     */
+    private Journal addIssns(URI passJournalUri, Journal journal) {
+        Journal passJournal = journalStates.get(passJournalUri);
+        boolean cached = passJournal != null;
+        if (!cached) {
+            passJournal = readJournal(passJournalUri);
+        }
+
+        while (true) {
+            //issns waiting to be written are as good as written
+            if (issnWrites != null) {
+                passJournal.setIssns(Stream.concat(passJournal.getIssns().stream(),
+                                                   issnWrites.pending(passJournalUri).stream()).distinct()
+                                           .collect(Collectors.toList()));
+            }
+            //check to see if we can supply issns
+            if (passJournal.getIssns().containsAll(journal.getIssns())) {
+                return passJournal;
+            }
+            if (cached && issnWrites == null && passJournal.getVersionTag() == null) {
+                //we do not know which version our copy is of, so we cannot make the update conditional on it
+                passJournal = readJournal(passJournalUri);
+                cached = false;
+                continue;
+            }
+
+            List<String> currentIssns = passJournal.getIssns();
+            List<String> missingIssns = journal.getIssns().stream().filter(issn -> !currentIssns.contains(issn))
+                                               .distinct().collect(Collectors.toList());
+            List<String> newIssnList = Stream.concat(passJournal.getIssns().stream(),
+                                                     journal.getIssns().stream()).distinct()
+                                             .collect(Collectors.toList());
+            passJournal.setIssns(newIssnList);
+            try {
+                writeIssns(passJournalUri, passJournal, missingIssns);
+            } catch (UpdateConflictException e) {
+                if (!cached) {
+                    throw e;
+                }
+                LOG.debug("Journal " + passJournalUri + " has changed since it was cached; reading it again");
+                journalStates.invalidate(passJournalUri);
+                passJournal = readJournal(passJournalUri);
+                cached = false;
+                continue;
+            }
+            if (journalIndex != null) {
+                journalIndex.put(passJournal.getId(), passJournal.getJournalName(), newIssnList);
+            }
+            //we do not know the version our update made
+            passJournal.setVersionTag(null);
+            journalStates.put(passJournal);
+            return passJournal;
+        }
+    }
+
+    /**
+     * read a journal from PASS, and cache its state
+     *
+     * @param passJournalUri - the id of the journal in PASS
+     * @return the journal
+     */
+    private Journal readJournal(URI passJournalUri) {
+        Journal passJournal = passClient.readResource(passJournalUri, Journal.class);
+        if (passJournal == null) {
+            String uhoh = "Journal URI " + passJournalUri.toString() + " was found, but the object could not be " +
+                          "retrieved. This should never happen.";
+            LOG.error(uhoh);
+            throw new RuntimeException(uhoh);
+        }
+        journalStates.put(passJournal);
+        return passJournal;
+    }
+
+    /**
+     * write the issns added to a journal to PASS, or queue them to be written if there is a write queue. A journal
+     * written directly without a version tag, as it is when cached after our own update, is read again first, so
+     * that the update is not made from an out of date copy.
+     *
+     * @param passJournalUri - the id of the journal in PASS
+     * @param passJournal    - the journal, with all of its issns
+     * @param missingIssns   - the issns PASS does not have yet
+     */
+    private void writeIssns(URI passJournalUri, Journal passJournal, List<String> missingIssns) {
+        if (issnWrites != null) {
+            try {
+                issnWrites.add(passJournalUri, missingIssns);
+                return;
+            } catch (IOException e) {
+                LOG.warn("Could not queue issns for journal " + passJournalUri + "; writing them now", e);
+            }
+        }
+        if (passJournal.getVersionTag() == null) {
+            Journal current = readJournal(passJournalUri);
+            current.setIssns(Stream.concat(current.getIssns().stream(), missingIssns.stream()).distinct()
+                                   .collect(Collectors.toList()));
+            passClient.updateResource(current);
+            passJournal.setIssns(Stream.concat(current.getIssns().stream(), passJournal.getIssns().stream())
+                                       .distinct().collect(Collectors.toList()));
+            return;
+        }
+        passClient.updateResource(passJournal);
+    }
+
+    /**
+     * externalize the internal id of a PASS object, so that it may be given to clients
+     *
+     * @param internalUri - the id of the object in Fedora
+     * @return the external id
+     */
+    URI externalize(URI internalUri) {
         String internalPrefix = System.getenv("PASS_FEDORA_BASEURL") != null ? System.getenv(
             "PASS_FEDORA_BASEURL") : FEDORA_INTERNAL;
         String externalPrefix = System.getenv("PASS_EXTERNAL_FEDORA_BASEURL") != null ? System.getenv(
@@ -381,18 +1331,17 @@ public class PassDoiServlet extends HttpServlet {
         externalPrefix = externalPrefix + (externalPrefix.endsWith("/") ? "" : "/");
         LOG.debug("Internal prefix: " + internalPrefix);
         LOG.debug("External prefix: " + externalPrefix);
-        String internalUriString = passJournal.getId().toString();
+        String internalUriString = internalUri.toString();
         if (internalUriString.startsWith(internalPrefix)) {
-            passJournal.setId(URI.create(internalUriString.replace(internalPrefix, externalPrefix)));
+            return URI.create(internalUriString.replace(internalPrefix, externalPrefix));
         }
-        LOG.debug("passJournal URI: " + passJournal.getId().toString());
-        LOG.debug("Returning journal object: " + passJournal.toString());
-        return passJournal;
+        return internalUri;
     }
 
     /**
      * Find a journal in our repository. We take the best match we can find. finder algorithm here should harmonize
-     * with the approach in the {@code BatchJournalFinder} in the journal loader code
+     * with the approach in the {@code BatchJournalFinder} in the journal loader code. Resolutions are cached, so that
+     * repeat lookups for a journal do not go to the index.
      *
      * @param name  the name of the journal to be found
      * @param issns the set of issns to find. we assume that the issns stored in the repo are of the format type:value
@@ -400,50 +1349,156 @@ public class PassDoiServlet extends HttpServlet {
      */
     URI find(String name, List<String> issns) {
 
-        Set<URI> nameUriSet = passClient.findAllByAttribute(Journal.class, "name", name);
-        Map<URI, Integer> uriScores = new HashMap<>();
-
-        if (!issns.isEmpty()) {
-            for (String issn : issns) {
-                Set<URI> issnList = passClient.findAllByAttribute(Journal.class, "issns", issn);
-                if (issnList != null) {
-                    for (URI uri : issnList) {
-                        Integer i = uriScores.putIfAbsent(uri, 1);
-                        if (i != null) {
-                            uriScores.put(uri, i + 1);
-                        }
-                    }
-                }
-            }
+        URI cachedUri = journalCache.get(name, issns);
+        if (cachedUri != null) {
+            LOG.debug("Using cached journal resolution for " + name);
+            return cachedUri;
         }
 
-        if (nameUriSet != null) {
-            for (URI uri : nameUriSet) {
-                Integer i = uriScores.putIfAbsent(uri, 1);
-                if (i != null) {
-                    uriScores.put(uri, i + 1);
-                }
-            }
+        return findBest(name, issns);
+    }
+
+    /**
+     * Find the journal best matching a name and set of issns by querying the index, as for
+     * {@link #find(String, List)}. Once the in-memory {@link JournalIndex} has loaded, journals are matched against
+     * it with no index queries at all. If batched index queries are enabled, all of the lookups are made with one
+     * query by the {@link JournalMatcher}. Otherwise the name lookup and the lookup for each issn are run
+     * concurrently, and their scores merged as they arrive. If the lookups have not all finished by the index
+     * deadline, and we already have a match, we go with the best match so far; if we have no match yet we keep
+     * waiting, since giving up would mean creating a journal which may well exist. Only complete results are cached.
+     * The best match is picked in the order set out in {@link JournalScores}, so that ties are broken the same way
+     * on every node.
+     *
+     * @param name  the name of the journal to be found
+     * @param issns the set of issns to find
+     * @return the URI of the best match, or null in nothing matches
+     */
+    URI findBest(String name, List<String> issns) {
+        if (journalIndex != null && journalIndex.isLoaded()) {
+            URI bestUri = journalIndex.best(name, issns);
+            journalCache.put(name, issns, bestUri);
+            return bestUri;
+        }
+
+        JournalScores scores = scoreJournals(name, issns);
+        URI bestUri = scores.best();
+        if (scores.isComplete()) {
+            journalCache.put(name, issns, bestUri);
+        }
+        return bestUri;
+    }
+
+    /**
+     * score the journals matching a name and set of issns, in whichever way {@link #findBest(String, List)} would
+     *
+     * @param name  the name of the journal to be found
+     * @param issns the set of issns to find
+     * @return the scores, which are incomplete if some index lookups were given up on
+     */
+    JournalScores scoreJournals(String name, List<String> issns) {
+        if (journalIndex != null && journalIndex.isLoaded()) {
+            return journalIndex.match(name, issns);
+        }
+
+        if (journalMatcher != null) {
+            return matchScores(name, issns);
         }
 
-        if (uriScores.size() > 0) {//we have matches, pick the best one
-            Integer highScore = Collections.max(uriScores.values());
-            int minimumQualifyingScore = 1;//with so little to go on, we may realistically get just one hit
-            List<URI> sortedUris = new ArrayList<>();
+        CompletionService<Set<URI>> lookups = new ExecutorCompletionService<>(indexExecutor);
+        List<Future<Set<URI>>> pending = new ArrayList<>();
+        Future<Set<URI>> nameLookup = lookups.submit(() -> passClient.findAllByAttribute(Journal.class, "name",
+                                                                                         name));
+        pending.add(nameLookup);
+        for (String issn : issns) {
+            pending.add(lookups.submit(() -> passClient.findAllByAttribute(Journal.class, "issns", issn)));
+        }
 
-            for (int i = highScore; i >= minimumQualifyingScore; i--) {
-                for (URI uri : uriScores.keySet()) {
-                    if (uriScores.get(uri) == i) {
-                        sortedUris.add(uri);
+        JournalScores scores = new JournalScores();
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(indexDeadline);
+        int received = 0;
+
+        try {
+            while (received < pending.size()) {
+                Future<Set<URI>> lookup = scores.isEmpty() ? lookups.take() :
+                                          lookups.poll(deadline - System.nanoTime(), NANOSECONDS);
+                if (lookup == null) {
+                    LOG.warn("Index lookups for journal " + name + " did not finish within " + indexDeadline +
+                             " ms; using the best match so far");
+                    scores.setIncomplete();
+                    break;
+                }
+                received++;
+                Set<URI> uris = lookup.get();
+                if (uris != null) {
+                    for (URI uri : uris) {
+                        if (lookup == nameLookup) {
+                            scores.addNameMatch(uri);
+                        } else {
+                            scores.addIssnMatch(uri);
+                        }
                     }
                 }
             }
-
-            if (sortedUris.size() > 0) {// there are matching journals
-                return sortedUris.get(0); //return the best match
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while looking up journal " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-        } //nothing matches, create a new journal
-        return null;
+            throw new RuntimeException("Could not look up journal " + name, e.getCause());
+        } finally {
+            for (Future<Set<URI>> lookup : pending) {
+                lookup.cancel(true);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * @return how journals are being matched, for explaining a match
+     */
+    private String matchingMethod() {
+        if (journalIndex != null && journalIndex.isLoaded()) {
+            return "journal-index";
+        }
+        return journalMatcher != null ? "batched-index-query" : "index-lookups";
+    }
+
+    /**
+     * score the journals matching a name and set of issns with one index query, which is shared with the lookups of
+     * other requests if they are being collected
+     *
+     * @param name  the name of the journal to be found
+     * @param issns the set of issns to find
+     * @return the scores
+     */
+    private JournalScores matchScores(String name, List<String> issns) {
+        if (indexCollector == null) {
+            return journalMatcher.match(name, issns);
+        }
+        try {
+            return indexCollector.submit(new JournalMatcher.Query(name, issns)).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * score the journals for a batch of collected index lookups, with one query on an index thread
+     *
+     * @param queries - the names and issns of the lookups
+     * @return the scores for each lookup, when they are available
+     */
+    private Map<JournalMatcher.Query, CompletableFuture<JournalScores>> scoreBatch(
+        List<JournalMatcher.Query> queries) {
+        CompletableFuture<Map<JournalMatcher.Query, JournalScores>> scored =
+            CompletableFuture.supplyAsync(() -> journalMatcher.scoreAll(queries), indexExecutor);
+        Map<JournalMatcher.Query, CompletableFuture<JournalScores>> scores = new HashMap<>();
+        for (JournalMatcher.Query query : queries) {
+            scores.put(query, scored.thenApply(all -> all.get(query)));
+        }
+        return scores;
     }
 
     /**
@@ -466,30 +1521,6 @@ public class PassDoiServlet extends HttpServlet {
     }
 
 
-    /**
-     * A class to manage locking so that an active process for a DOI will finish executing before
-     * another one begins
-     */
-    public class ExpiringLock implements Runnable {
-        private String key;
-        private int duration;
-
-        ExpiringLock(String key, int duration) {
-            this.key = key;
-            this.duration = duration;
-        }
-
-        public void run() {
-            try {
-                sleep(duration);
-                activeJobs.remove(key);
-            } catch (InterruptedException e) {
-                activeJobs.remove(key);
-            }
-        }
-
-    }
-
     /**
      * a convenienc enum for translating type strings for issns
      */
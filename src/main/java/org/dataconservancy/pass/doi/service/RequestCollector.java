@@ -0,0 +1,161 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Collects lookups made by concurrent requests into batches, so that one combined call serves them all. The first
+ * lookup into an empty batch starts the batch window; the batch is sent when the window closes, or as soon as it
+ * holds the maximum number of lookups, whichever comes first. A lookup for a key already in the open batch shares
+ * its result. A longer window or a larger batch means fewer calls, at the cost of a longer wait for the first
+ * lookup in each batch.
+ *
+ * @param <K> the type of the lookup keys
+ * @param <V> the type of the results
+ */
+public class RequestCollector<K, V> {
+
+    private final long window;
+    private final int maxSize;
+    private final ScheduledExecutorService scheduler;
+    private final Function<List<K>, Map<K, CompletableFuture<V>>> lookup;
+
+    //guarded by this
+    private Map<K, CompletableFuture<V>> open = new LinkedHashMap<>();
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * @param window    - how long a batch stays open for more lookups, in ms
+     * @param maxSize   - the most lookups in a batch
+     * @param scheduler - closes the batch windows; the batch lookups should not block it
+     * @param lookup    - makes the combined call for a batch, returning the result for each of its keys. It should
+     *                  not block.
+     */
+    public RequestCollector(long window, int maxSize, ScheduledExecutorService scheduler,
+                            Function<List<K>, Map<K, CompletableFuture<V>>> lookup) {
+        this.window = window;
+        this.maxSize = maxSize;
+        this.scheduler = scheduler;
+        this.lookup = lookup;
+    }
+
+    /**
+     * add a lookup to the open batch
+     *
+     * @param key - the key to look up
+     * @return the result, when the batch has been looked up
+     */
+    public CompletableFuture<V> submit(K key) {
+        lookups.increment();
+        Map<K, CompletableFuture<V>> full = null;
+        CompletableFuture<V> result;
+        synchronized (this) {
+            result = open.get(key);
+            if (result != null) {
+                return result;
+            }
+            result = new CompletableFuture<>();
+            open.put(key, result);
+            if (open.size() >= maxSize) {
+                full = open;
+                open = new LinkedHashMap<>();
+            } else if (open.size() == 1) {
+                Map<K, CompletableFuture<V>> batch = open;
+                try {
+                    scheduler.schedule(() -> close(batch), window, MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    full = open;
+                    open = new LinkedHashMap<>();
+                }
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return result;
+    }
+
+    /**
+     * send a batch whose window has closed, unless it has already been sent because it filled up
+     */
+    private void close(Map<K, CompletableFuture<V>> batch) {
+        synchronized (this) {
+            if (open != batch) {
+                return;
+            }
+            open = new LinkedHashMap<>();
+        }
+        send(batch);
+    }
+
+    /**
+     * make the combined call for a batch, and pass each result on to the lookups waiting for it
+     */
+    private void send(Map<K, CompletableFuture<V>> batch) {
+        batches.increment();
+        Map<K, CompletableFuture<V>> results;
+        try {
+            results = lookup.apply(new ArrayList<>(batch.keySet()));
+        } catch (RuntimeException e) {
+            batch.values().forEach(waiting -> waiting.completeExceptionally(e));
+            return;
+        }
+        batch.forEach((key, waiting) -> {
+            CompletableFuture<V> result = results.get(key);
+            if (result == null) {
+                waiting.completeExceptionally(new IllegalStateException("The batch lookup returned no result for " +
+                                                                        key));
+                return;
+            }
+            result.whenComplete((value, e) -> {
+                if (e != null) {
+                    waiting.completeExceptionally(e);
+                } else {
+                    waiting.complete(value);
+                }
+            });
+        });
+    }
+
+    /**
+     * @return the collector counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        long batchCount = batches.sum();
+        long lookupCount = lookups.sum();
+        return Json.createObjectBuilder()
+                   .add("lookups", lookupCount)
+                   .add("batches", batchCount)
+                   .add("mean-batch-size", batchCount == 0 ? 0 : (double) lookupCount / batchCount)
+                   .build();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.concurrent.atomic.LongAdder;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Caps the extra calls we make to a remote service, retries and hedged requests alike, to a fraction of the calls
+ * we would make anyway. Each original call earns a fraction of a token, and each extra call spends a whole one; the
+ * balance is capped, so that a quiet period does not bank enough tokens for a flood of retries later. When the
+ * service is failing across the board, retries soon use up the balance, and we stop adding to its load.
+ */
+public class RetryBudget {
+
+    private final double ratio;
+    private final double reserve;
+
+    //guarded by this
+    private double balance;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder refusals = new LongAdder();
+
+    /**
+     * @param ratio   - the fraction of a token earned by each original call
+     * @param reserve - the most tokens which may be held, which is also what we start with
+     */
+    public RetryBudget(double ratio, int reserve) {
+        this.ratio = ratio;
+        this.reserve = reserve;
+        this.balance = reserve;
+    }
+
+    /**
+     * record an original call
+     */
+    public synchronized void onCall() {
+        balance = Math.min(reserve, balance + ratio);
+    }
+
+    /**
+     * ask to retry a call
+     *
+     * @return true if the retry may be made
+     */
+    public boolean tryRetry() {
+        if (withdraw()) {
+            retries.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * ask to hedge a call with a second one
+     *
+     * @return true if the hedged call may be made
+     */
+    public boolean tryHedge() {
+        if (withdraw()) {
+            hedges.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean withdraw() {
+        synchronized (this) {
+            if (balance >= 1) {
+                balance -= 1;
+                return true;
+            }
+        }
+        refusals.increment();
+        return false;
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getRefusals() {
+        return refusals.sum();
+    }
+
+    /**
+     * @return the budget counters as a JSON object, for reporting
+     */
+    JsonObject stats() {
+        double available;
+        synchronized (this) {
+            available = balance;
+        }
+        return Json.createObjectBuilder()
+                   .add("available", available)
+                   .add("retries", getRetries())
+                   .add("hedges", getHedges())
+                   .add("refusals", getRefusals())
+                   .build();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An index of journal names by their trigrams, for finding the journals whose names are like a given name. Names are
+ * first reduced to their words: accents and punctuation are dropped, case is ignored, and small words such as "of" and
+ * "the" are left out, so that "The Journal of Biological Chemistry" becomes {@code journal biological chemistry}. Each
+ * word, marked at its start, is broken into trigrams, and the trigrams map to the ordinals of the journals which
+ * have them.
+ *
+ * <p>A name is compared with the names sharing enough of its trigrams. Names with the same words are alike. Names
+ * of more than one word where each word of one starts the matching word of the other, as with "J. Biol. Chem." and
+ * "Journal of Biological Chemistry", are nearly alike, and the more so the more of the longer words the shorter
+ * words keep. Otherwise names are as alike as the share of trigrams they have in common (the Dice coefficient). Not
+ * thread safe.</p>
+ */
+final class TrigramIndex {
+
+    /**
+     * the similarity of names with the same words
+     */
+    static final double SAME_WORDS = 1.0;
+
+    /**
+     * the similarity of names where the words of one are abbreviations of the words of the other, were the
+     * abbreviations to keep all of the letters
+     */
+    static final double ABBREVIATED = 0.95;
+
+    /**
+     * the similarity of names where the words of one are abbreviations of the words of the other, were the
+     * abbreviations to keep none of the letters
+     */
+    static final double ABBREVIATED_MIN = 0.8;
+
+    //the most candidates which are compared with a name, those with the most trigrams in common
+    private static final int MAX_CANDIDATES = 64;
+
+    private static final Set<String> SMALL_WORDS = new HashSet<>(Arrays.asList(
+        "a", "an", "and", "for", "in", "of", "on", "the", "to"));
+
+    private final IntPostingMap byTrigram = new IntPostingMap();
+
+    //indexed by ordinal
+    private String[][] words = new String[1024][];
+    private int[][] trigrams = new int[1024][];
+
+    /**
+     * a journal whose name is like a given name
+     */
+    static final class Candidate {
+
+        final int ordinal;
+        final double similarity;
+
+        Candidate(int ordinal, double similarity) {
+            this.ordinal = ordinal;
+            this.similarity = similarity;
+        }
+    }
+
+    /**
+     * add a journal name to the index, replacing any name the journal had
+     *
+     * @param ordinal - the ordinal of the journal
+     * @param name    - the name
+     */
+    void add(int ordinal, String name) {
+        remove(ordinal);
+        if (ordinal >= words.length) {
+            int capacity = Math.max(words.length * 2, ordinal + 1);
+            words = Arrays.copyOf(words, capacity);
+            trigrams = Arrays.copyOf(trigrams, capacity);
+        }
+        words[ordinal] = words(name);
+        trigrams[ordinal] = trigrams(words[ordinal]);
+        for (int trigram : trigrams[ordinal]) {
+            byTrigram.add(trigram, ordinal);
+        }
+    }
+
+    /**
+     * remove a journal name from the index
+     *
+     * @param ordinal - the ordinal of the journal
+     */
+    void remove(int ordinal) {
+        if (ordinal >= words.length || words[ordinal] == null) {
+            return;
+        }
+        for (int trigram : trigrams[ordinal]) {
+            byTrigram.remove(trigram, ordinal);
+        }
+        words[ordinal] = null;
+        trigrams[ordinal] = null;
+    }
+
+    /**
+     * find the journals whose names are like a name. Candidates are gathered and compared until the time allowed
+     * runs out, after which the journals found so far are returned.
+     *
+     * @param name      - the name
+     * @param threshold - the least similarity, from 0 to 1, for a journal to be returned
+     * @param budget    - the time allowed, in nanoseconds
+     * @return the journals at or above the threshold, most similar first
+     */
+    List<Candidate> similar(String name, double threshold, long budget) {
+        long deadline = System.nanoTime() + budget;
+        String[] nameWords = words(name);
+        int[] nameTrigrams = trigrams(nameWords);
+        List<Candidate> similar = new ArrayList<>();
+        if (nameTrigrams.length == 0) {
+            return similar;
+        }
+
+        IntIntMap shared = new IntIntMap(16);
+        for (int trigram : nameTrigrams) {
+            for (int ordinal : byTrigram.get(trigram)) {
+                shared.add(ordinal, 1);
+            }
+            if (System.nanoTime() > deadline) {
+                return similar;
+            }
+        }
+
+        //keep the journals sharing at least half of the trigrams of either name, most shared first
+        long[] candidates = new long[shared.size()];
+        int found = 0;
+        for (int slot = 0; slot < shared.capacity(); slot++) {
+            int ordinal = shared.keyAt(slot);
+            if (ordinal >= 0) {
+                int common = shared.valueAt(slot);
+                if (common * 2 >= nameTrigrams.length || common * 2 >= trigrams[ordinal].length) {
+                    //sort on the shared count, then on the ordinal
+                    candidates[found++] = (long) -common << 32 | ordinal;
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, found);
+
+        for (int i = 0; i < Math.min(found, MAX_CANDIDATES) && System.nanoTime() <= deadline; i++) {
+            int ordinal = (int) candidates[i];
+            int common = (int) -(candidates[i] >> 32);
+            double similarity = similarity(nameWords, words[ordinal],
+                                           2.0 * common / (nameTrigrams.length + trigrams[ordinal].length));
+            if (similarity >= threshold) {
+                similar.add(new Candidate(ordinal, similarity));
+            }
+        }
+        similar.sort((a, b) -> Double.compare(b.similarity, a.similarity));
+        return similar;
+    }
+
+    /**
+     * @param a    - the words of a name
+     * @param b    - the words of another name
+     * @param dice - the share of trigrams the names have in common
+     * @return the similarity of the names
+     */
+    static double similarity(String[] a, String[] b, double dice) {
+        if (Arrays.equals(a, b)) {
+            return SAME_WORDS;
+        }
+        if (a.length > 1 && a.length == b.length) {
+            if (abbreviates(a, b)) {
+                return Math.max(abbreviated(a, b), dice);
+            }
+            if (abbreviates(b, a)) {
+                return Math.max(abbreviated(b, a), dice);
+            }
+        }
+        return dice;
+    }
+
+    /**
+     * @return the similarity of names where the shorter words are abbreviations of the longer words, by the share
+     * of their letters the abbreviations keep
+     */
+    private static double abbreviated(String[] shorter, String[] longer) {
+        int kept = 0;
+        int letters = 0;
+        for (int i = 0; i < shorter.length; i++) {
+            kept += shorter[i].length();
+            letters += longer[i].length();
+        }
+        return ABBREVIATED_MIN + (ABBREVIATED - ABBREVIATED_MIN) * kept / letters;
+    }
+
+    private static boolean abbreviates(String[] shorter, String[] longer) {
+        for (int i = 0; i < shorter.length; i++) {
+            if (!longer[i].startsWith(shorter[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * reduce a name to its words, without accents, punctuation, case or small words
+     *
+     * @param name - the name
+     * @return the words
+     */
+    static String[] words(String name) {
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        List<String> nameWords = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= folded.length(); i++) {
+            char c = i < folded.length() ? folded.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\'' || c == '\u2019') {
+                //accents and apostrophes do not break a word
+                continue;
+            } else if (word.length() > 0) {
+                if (!SMALL_WORDS.contains(word.toString())) {
+                    nameWords.add(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+        return nameWords.toArray(new String[0]);
+    }
+
+    /**
+     * @param nameWords - the words of a name
+     * @return the distinct trigrams of the words, each marked at its start, in order
+     */
+    static int[] trigrams(String[] nameWords) {
+        int count = 0;
+        for (String word : nameWords) {
+            count += Math.max(0, word.length() - 1);
+        }
+        int[] codes = new int[count];
+        int n = 0;
+        for (String word : nameWords) {
+            //the start of the word counts as a character
+            int first = 0;
+            int second = code(word.charAt(0));
+            for (int i = 1; i < word.length(); i++) {
+                int third = code(word.charAt(i));
+                codes[n++] = (first * 38 + second) * 38 + third;
+                first = second;
+                second = third;
+            }
+        }
+        Arrays.sort(codes);
+        int distinct = 0;
+        for (int i = 0; i < codes.length; i++) {
+            if (i == 0 || codes[i] != codes[i - 1]) {
+                codes[distinct++] = codes[i];
+            }
+        }
+        return Arrays.copyOf(codes, distinct);
+    }
+
+    //0 marks the start of a word, then a-z, 0-9, and anything else
+    private static int code(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 1;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 27;
+        }
+        return 37;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the circuit breaker
+ */
+public class CircuitBreakerTest {
+
+    private AtomicLong now = new AtomicLong(1000);
+
+    private CircuitBreaker underTest;
+
+    @Before
+    public void setUp() {
+        underTest = new CircuitBreaker("Crossref", 2, 1000, now::get);
+    }
+
+    /**
+     * test that the breaker opens after a run of failures, and refuses calls until it is time for a trial
+     */
+    @Test
+    public void opensAfterFailuresTest() {
+        underTest.onFailure();
+        underTest.onSuccess();
+        underTest.onFailure();
+        assertTrue(underTest.allowRequest());
+        underTest.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, underTest.getState());
+        assertFalse(underTest.allowRequest());
+        assertEquals(1000, underTest.getRetryDelay());
+    }
+
+    /**
+     * test that a single trial call is let through once the breaker has been open for its period, and that its
+     * outcome decides whether the breaker closes
+     */
+    @Test
+    public void trialCallTest() {
+        underTest.onFailure();
+        underTest.onFailure();
+        now.addAndGet(1000);
+
+        assertTrue(underTest.allowRequest());
+        assertFalse(underTest.allowRequest());
+        underTest.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, underTest.getState());
+
+        now.addAndGet(1000);
+        assertTrue(underTest.allowRequest());
+        underTest.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, underTest.getState());
+        assertTrue(underTest.allowRequest());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the Crossref works cache
+ */
+public class CrossrefCacheTest {
+
+    private AtomicLong now = new AtomicLong(1000);
+
+    private JsonObject works = Json.createObjectBuilder()
+                                   .add("status", "ok")
+                                   .add("message", Json.createObjectBuilder().add("DOI", "10.4137/cmc.s38446"))
+                                   .build();
+
+    private JsonObject notFound = Json.createObjectBuilder().add("error", CrossrefCache.NOT_FOUND).build();
+
+    private CrossrefCache underTest;
+
+    @Before
+    public void setUp() {
+        underTest = new CrossrefCache(2, 1000, 100, now::get);
+    }
+
+    /**
+     * test that works objects are found by case-insensitive doi until they expire
+     */
+    @Test
+    public void hitAndExpiryTest() {
+        underTest.put("10.4137/cmc.s38446", works);
+
+        assertEquals(works, underTest.get("10.4137/CMC.S38446"));
+        now.addAndGet(1000);
+        assertNull(underTest.get("10.4137/cmc.s38446"));
+
+        assertEquals(1, underTest.getHits());
+        assertEquals(1, underTest.getMisses());
+        assertEquals(0, underTest.size());
+    }
+
+    /**
+     * test that not found responses are kept for the shorter negative ttl, and other errors are not kept at all
+     */
+    @Test
+    public void negativeResultTest() {
+        underTest.put("10.1212/abc.def", notFound);
+        underTest.put("10.1212/abc.ghi", Json.createObjectBuilder().add("error", "Bad gateway").build());
+
+        assertEquals(notFound, underTest.get("10.1212/abc.def"));
+        assertNull(underTest.get("10.1212/abc.ghi"));
+        now.addAndGet(100);
+        assertNull(underTest.get("10.1212/abc.def"));
+    }
+
+    /**
+     * test that an expired works object may still be used as a fallback for a while, but a not found response may not
+     */
+    @Test
+    public void staleFallbackTest() {
+        underTest = new CrossrefCache(2, 1000, 100, 500, now::get);
+        underTest.put("10.4137/cmc.s38446", works);
+        underTest.put("10.1212/abc.def", notFound);
+        now.addAndGet(1200);
+
+        assertNull(underTest.get("10.4137/cmc.s38446"));
+        assertEquals(works, underTest.getStale("10.4137/cmc.s38446"));
+        assertEquals(1200, underTest.staleness("10.4137/cmc.s38446", works));
+        assertNull(underTest.getStale("10.1212/abc.def"));
+
+        now.addAndGet(300);
+        assertNull(underTest.getStale("10.4137/cmc.s38446"));
+    }
+
+    /**
+     * test that the least recently used entry is evicted when the cache is full
+     */
+    @Test
+    public void evictionTest() {
+        underTest.put("10.1234/a", works);
+        underTest.put("10.1234/b", works);
+        underTest.get("10.1234/a");
+        underTest.put("10.1234/c", works);
+
+        assertEquals(2, underTest.size());
+        assertEquals(1, underTest.getEvictions());
+        assertNull(underTest.get("10.1234/b"));
+        assertEquals(works, underTest.get("10.1234/a"));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the Crossref rate limiter
+ */
+public class CrossrefRateLimiterTest {
+
+    private AtomicLong now = new AtomicLong(1000);
+
+    private CrossrefRateLimiter underTest;
+
+    @Before
+    public void setUp() {
+        underTest = new CrossrefRateLimiter(2, 1000, 1000, now::get);
+    }
+
+    /**
+     * test that callers beyond the limit are told to wait their turn, in order, and refused if the wait is too long
+     */
+    @Test
+    public void reservationTest() {
+        assertEquals(0, underTest.reserve());
+        assertEquals(0, underTest.reserve());
+        assertEquals(500, underTest.reserve());
+        assertEquals(1000, underTest.reserve());
+        assertEquals(-1, underTest.reserve());
+
+        now.addAndGet(1000);
+        assertEquals(500, underTest.reserve());
+        assertEquals(3, underTest.getWaits());
+        assertEquals(2000, underTest.getWaitTime());
+        assertEquals(1, underTest.getRefusals());
+    }
+
+    /**
+     * test that the limiter follows the limit Crossref reports, and holds off when throttled
+     */
+    @Test
+    public void crossrefHeadersTest() {
+        underTest.update(response(200).header(CrossrefRateLimiter.LIMIT_HEADER, "10")
+                                      .header(CrossrefRateLimiter.INTERVAL_HEADER, "1s").build());
+        assertEquals(0, underTest.reserve());
+        assertEquals(0, underTest.reserve());
+        assertEquals(100, underTest.reserve());
+
+        now.addAndGet(1000);
+        underTest.update(response(429).header("Retry-After", "1").build());
+        assertEquals(1000, underTest.reserve());
+    }
+
+    /**
+     * test the interval formats we may be sent
+     */
+    @Test
+    public void parseIntervalTest() {
+        assertEquals(1000, CrossrefRateLimiter.parseInterval("1s", "s"));
+        assertEquals(250, CrossrefRateLimiter.parseInterval("250ms", "s"));
+        assertEquals(120000, CrossrefRateLimiter.parseInterval("2m", "s"));
+        assertEquals(5000, CrossrefRateLimiter.parseInterval("5", "s"));
+        assertEquals(-1, CrossrefRateLimiter.parseInterval("soon", "s"));
+    }
+
+    private static Response.Builder response(int code) {
+        return new Response.Builder()
+            .request(new Request.Builder().url("https://api.crossref.org/v1/works/10.4137/cmc.s38446").build())
+            .protocol(Protocol.HTTP_1_1)
+            .code(code)
+            .message("");
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import javax.json.JsonObject;
+
+import org.dataconservancy.pass.model.Journal;
+import org.junit.Test;
+
+/**
+ * Unit tests for the streaming Crossref reader
+ */
+public class CrossrefReaderTest {
+
+    private String works = "{\"status\":\"ok\",\"message-type\":\"work\",\"message\":{" +
+                           "\"indexed\":{\"date-parts\":[[2019,4,2]],\"timestamp\":1554178325540}," +
+                           "\"reference\":[{\"key\":\"ref1\",\"unstructured\":\"A long reference\"}]," +
+                           "\"container-title\":[\"Clinical Medicine Insights: Cardiology\"]," +
+                           "\"title\":[\"An article\"],\"ISSN\":[\"1179-5468\",\"1234-5678\"]," +
+                           "\"issn-type\":[{\"value\":\"1179-5468\",\"type\":\"print\"}]}}";
+
+    /**
+     * test that the whole record is kept when it is wanted
+     */
+    @Test
+    public void fullRecordTest() throws Exception {
+        JsonObject record = CrossrefReader.read(stream(works), true);
+
+        assertTrue(CrossrefReader.isFull(record));
+        assertEquals("An article", record.getJsonObject("message").getJsonArray("title").getString(0));
+        assertEquals(1, record.getJsonObject("message").getJsonArray("reference").size());
+    }
+
+    /**
+     * test that a journal record keeps only the journal fields, and builds the same journal as the whole record
+     */
+    @Test
+    public void journalRecordTest() throws Exception {
+        JsonObject record = CrossrefReader.read(stream(works), false);
+
+        assertFalse(CrossrefReader.isFull(record));
+        assertEquals(CrossrefReader.JOURNAL_FIELDS, record.getJsonObject("message").keySet());
+
+        PassDoiServlet servlet = new PassDoiServlet();
+        Journal fromJournalRecord = servlet.buildPassJournal(record);
+        Journal fromFullRecord = servlet.buildPassJournal(CrossrefReader.read(stream(works), true));
+        assertEquals(fromFullRecord.getJournalName(), fromJournalRecord.getJournalName());
+        assertEquals(fromFullRecord.getIssns(), fromJournalRecord.getIssns());
+    }
+
+    /**
+     * test that a body which is not JSON, as Crossref sends for a missing resource, becomes an error object
+     */
+    @Test
+    public void errorBodyTest() throws Exception {
+        JsonObject record = CrossrefReader.read(stream("Resource not found."), false);
+
+        assertTrue(CrossrefCache.isNotFound(record));
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(UTF_8));
+    }
+}
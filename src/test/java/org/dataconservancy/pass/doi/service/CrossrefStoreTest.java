@@ -0,0 +1,137 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the disk-backed Crossref store
+ */
+public class CrossrefStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AtomicLong now = new AtomicLong(1000);
+
+    private JsonObject works(String doi) {
+        return Json.createObjectBuilder()
+                   .add("status", "ok")
+                   .add("message", Json.createObjectBuilder().add("DOI", doi).add("title", "Café \t Society"))
+                   .build();
+    }
+
+    /**
+     * test that records survive reopening the store, and that the latest record for a doi wins
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void reopenTest() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            store.warm(false);
+            store.put("10.1234/a", works("old"));
+            store.put("10.1234/A", works("new"));
+            store.put("10.1234/b", works("b"));
+            store.put("10.1234/c", Json.createObjectBuilder().add("error", CrossrefCache.NOT_FOUND).build());
+            assertEquals(works("new"), store.get("10.1234/a"));
+        }
+
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            assertNull(store.get("10.1234/a"));
+            store.warm(false);
+            assertEquals(2, store.size());
+            assertEquals(works("new"), store.get("10.1234/a"));
+            assertEquals(works("b"), store.get("10.1234/b"));
+            assertNull(store.get("10.1234/c"));
+        }
+    }
+
+    /**
+     * test that a record left half written by a crash is skipped, and does not corrupt the records after it
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void tornRecordTest() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            store.warm(false);
+            store.put("10.1234/a", works("a"));
+        }
+        Files.write(directory.resolve(CrossrefStore.LOG_FILE), "10.1234/b\t1000\t{\"status\":".getBytes(UTF_8),
+                    APPEND);
+
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            store.warm(false);
+            store.put("10.1234/c", works("c"));
+            assertEquals(works("a"), store.get("10.1234/a"));
+            assertNull(store.get("10.1234/b"));
+            assertEquals(works("c"), store.get("10.1234/c"));
+        }
+    }
+
+    /**
+     * test that compaction drops expired and superseded records, and keeps the rest readable
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void compactionTest() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path log = directory.resolve(CrossrefStore.LOG_FILE);
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            store.warm(false);
+            store.put("10.1234/a", works("a"));
+            now.addAndGet(500);
+            store.put("10.1234/b", works("old"));
+            store.put("10.1234/b", works("b"));
+        }
+        long before = Files.size(log);
+        now.addAndGet(600);
+
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            store.warm(true);
+            assertEquals(1, store.size());
+            assertTrue(Files.size(log) < before);
+            assertNull(store.get("10.1234/a"));
+            assertEquals(works("b"), store.get("10.1234/b"));
+            store.put("10.1234/c", works("c"));
+        }
+
+        try (CrossrefStore store = new CrossrefStore(directory, 1000, now::get)) {
+            store.warm(false);
+            assertEquals(works("b"), store.get("10.1234/b"));
+            assertEquals(works("c"), store.get("10.1234/c"));
+        }
+    }
+}
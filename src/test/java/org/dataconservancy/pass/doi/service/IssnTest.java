@@ -0,0 +1,88 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the compact ISSN encoding and the primitive maps used with it
+ */
+public class IssnTest {
+
+    /**
+     * test that valid ISSNs encode with their type, and decode to the form PASS stores
+     */
+    @Test
+    public void encodeTest() {
+        int print = Issn.encode("Print:1179-5468");
+        int online = Issn.encode("Online:1179-5468");
+
+        assertEquals(Issn.PRINT, Issn.typeOf(print));
+        assertEquals(Issn.ONLINE, Issn.typeOf(online));
+        assertNotEquals(print, online);
+        assertEquals(Issn.untyped(print), Issn.untyped(online));
+        assertEquals(Issn.encode("1179-5468"), Issn.untyped(print));
+        assertEquals(Issn.encode("11795468"), Issn.untyped(print));
+
+        assertEquals("Print:1179-5468", Issn.decode(print));
+        assertEquals("2434-561X", Issn.decode(Issn.encode("2434-561x")));
+        assertEquals("Online:0000-0000", Issn.decode(Issn.encode("Online:0000-0000")));
+
+        //an issn PASS stores with an empty type
+        int blank = Issn.encode(":1179-5468");
+        assertEquals(Issn.BLANK, Issn.typeOf(blank));
+        assertEquals(Issn.untyped(print), Issn.untyped(blank));
+        assertNotEquals(Issn.encode("1179-5468"), blank);
+        assertEquals(":1179-5468", Issn.decode(blank));
+    }
+
+    /**
+     * test that ISSNs with a bad check character, a bad form or an unknown type are not encoded
+     */
+    @Test
+    public void invalidTest() {
+        assertEquals(Issn.INVALID, Issn.encode("Print:1179-5469"));
+        assertEquals(Issn.INVALID, Issn.encode("Print:0000-0001"));
+        assertEquals(Issn.INVALID, Issn.encode("Print:1179-546"));
+        assertEquals(Issn.INVALID, Issn.encode("Print:1179-54688"));
+        assertEquals(Issn.INVALID, Issn.encode("Print:11X9-5468"));
+        assertEquals(Issn.INVALID, Issn.encode("Print:1179--5468"));
+        assertEquals(Issn.INVALID, Issn.encode("Electronic:1179-5468"));
+        assertEquals(Issn.INVALID, Issn.encode("::1179-5468"));
+    }
+
+    /**
+     * test that the int map keeps its counts as it grows
+     */
+    @Test
+    public void intIntMapTest() {
+        IntIntMap map = new IntIntMap(2);
+        for (int key = 0; key < 1000; key++) {
+            map.add(key * 7, key);
+            map.add(key * 7, 1);
+        }
+
+        assertEquals(1000, map.size());
+        for (int key = 0; key < 1000; key++) {
+            assertEquals(key + 1, map.get(key * 7));
+        }
+        assertEquals(0, map.get(3));
+    }
+}
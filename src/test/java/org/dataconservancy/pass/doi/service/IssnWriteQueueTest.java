@@ -0,0 +1,262 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import javax.json.Json;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Journal;
+import org.fcrepo.client.FcrepoOperationFailedException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Unit tests for the write-behind queue of issn additions
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class IssnWriteQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    PassClient passClientMock;
+
+    private URI journalId = URI.create("http://example.org/journal");
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder().toPath();
+        //each read gets the journal as PASS holds it
+        when(passClientMock.readResource(journalId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(journalId);
+            journal.setIssns(new ArrayList<>(Collections.singletonList("Print:0000-0001")));
+            return journal;
+        });
+    }
+
+    /**
+     * test that the additions for a journal are merged into one update, and that the log is emptied once they are
+     * written
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void coalesceTest() throws Exception {
+        IssnWriteQueue underTest = new IssnWriteQueue(directory, passClientMock, 60000, 50, 10);
+        underTest.add(journalId, Collections.singletonList("Online:0000-0002"));
+        underTest.add(journalId, Arrays.asList("Online:0000-0002", ":0000-0003"));
+        underTest.add(journalId, Collections.singletonList("Print:0000-0001"));
+        assertEquals(1, underTest.size());
+        assertEquals(3, underTest.pending(journalId).size());
+
+        underTest.flush();
+
+        ArgumentCaptor<Journal> updated = ArgumentCaptor.forClass(Journal.class);
+        verify(passClientMock, times(1)).readResource(journalId, Journal.class);
+        verify(passClientMock, times(1)).updateResource(updated.capture());
+        assertEquals(Arrays.asList("Print:0000-0001", "Online:0000-0002", ":0000-0003"),
+                     updated.getValue().getIssns());
+        assertEquals(0, underTest.size());
+        assertEquals(0, Files.size(directory.resolve(IssnWriteQueue.LOG_FILE)));
+        underTest.close();
+    }
+
+    /**
+     * test that additions which were not written before a crash are written once the queue is opened again, skipping
+     * an addition torn by the crash
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void replayTest() throws Exception {
+        IssnWriteQueue crashed = new IssnWriteQueue(directory, passClientMock, 60000, 50, 10);
+        crashed.add(journalId, Collections.singletonList("Online:0000-0002"));
+        Files.write(directory.resolve(IssnWriteQueue.LOG_FILE), "{\"journal\":\"http://exa".getBytes(UTF_8), APPEND);
+
+        IssnWriteQueue reopened = new IssnWriteQueue(directory, passClientMock, 60000, 50, 10);
+        ArgumentCaptor<Journal> updated = ArgumentCaptor.forClass(Journal.class);
+        verify(passClientMock, timeout(5000)).updateResource(updated.capture());
+        assertEquals(Arrays.asList("Print:0000-0001", "Online:0000-0002"), updated.getValue().getIssns());
+        reopened.close();
+    }
+
+    /**
+     * test that additions still show as waiting while they are being written
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void inFlightTest() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(i -> {
+            writing.countDown();
+            release.await(5, SECONDS);
+            return null;
+        }).when(passClientMock).updateResource(any());
+
+        IssnWriteQueue underTest = new IssnWriteQueue(directory, passClientMock, 60000, 50, 10);
+        underTest.add(journalId, Collections.singletonList("Online:0000-0002"));
+        Thread flush = new Thread(underTest::flush);
+        flush.start();
+        assertTrue(writing.await(5, SECONDS));
+
+        underTest.add(journalId, Collections.singletonList(":0000-0003"));
+        assertEquals(new HashSet<>(Arrays.asList("Online:0000-0002", ":0000-0003")), underTest.pending(journalId));
+
+        release.countDown();
+        flush.join(5000);
+        assertEquals(Collections.singleton(":0000-0003"), underTest.pending(journalId));
+        underTest.close();
+    }
+
+    /**
+     * test that additions which could not be written are kept and tried again, and that a full batch is written
+     * without waiting for the delay
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void retryTest() throws Exception {
+        URI otherId = URI.create("http://example.org/other");
+        Journal other = new Journal();
+        other.setId(otherId);
+        when(passClientMock.readResource(otherId, Journal.class)).thenThrow(new RuntimeException("unavailable"))
+                                                                 .thenReturn(other);
+
+        IssnWriteQueue underTest = new IssnWriteQueue(directory, passClientMock, 60000, 2, 10);
+        underTest.add(otherId, Collections.singletonList("Print:0000-0004"));
+        underTest.add(journalId, Collections.singletonList("Online:0000-0002"));
+
+        verify(passClientMock, timeout(5000)).updateResource(any());
+        assertEquals(1, underTest.size());
+        List<String> lines = Files.readAllLines(directory.resolve(IssnWriteQueue.LOG_FILE), UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains(otherId.toString()));
+
+        underTest.flush();
+        verify(passClientMock, times(2)).updateResource(any());
+        assertEquals(Collections.singletonList("Print:0000-0004"), other.getIssns());
+        assertEquals(0, underTest.size());
+        underTest.close();
+    }
+
+    /**
+     * test that an addition is parked, rather than tried again, once it has failed the most attempts allowed or if it
+     * cannot succeed, and that a journal without issns is written
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void parkTest() throws Exception {
+        URI goneId = URI.create("http://example.org/gone");
+        when(passClientMock.readResource(goneId, Journal.class)).thenThrow(
+            new RuntimeException("A problem occurred while attempting to read a Resource",
+                                 new FcrepoOperationFailedException(goneId, 410, "Gone")));
+        URI failingId = URI.create("http://example.org/failing");
+        when(passClientMock.readResource(failingId, Journal.class)).thenThrow(new RuntimeException("unavailable"));
+        URI emptyId = URI.create("http://example.org/empty");
+        Journal empty = new Journal();
+        empty.setId(emptyId);
+        empty.setIssns(null);
+        when(passClientMock.readResource(emptyId, Journal.class)).thenReturn(empty);
+
+        IssnWriteQueue underTest = new IssnWriteQueue(directory, passClientMock, 60000, 50, 2);
+        underTest.add(goneId, Collections.singletonList("Print:0000-0004"));
+        underTest.add(failingId, Collections.singletonList("Print:0000-0005"));
+        underTest.add(emptyId, Collections.singletonList("Online:0000-0002"));
+
+        underTest.flush();
+        assertEquals(Collections.singletonList("Online:0000-0002"), empty.getIssns());
+        assertEquals(Collections.singleton(failingId.toString()), journals(IssnWriteQueue.LOG_FILE));
+        assertEquals(Collections.singleton(goneId.toString()), journals(IssnWriteQueue.PARKED_FILE));
+
+        underTest.flush();
+        verify(passClientMock, times(1)).readResource(goneId, Journal.class);
+        verify(passClientMock, times(2)).readResource(failingId, Journal.class);
+        assertEquals(0, underTest.size());
+        assertEquals(0, Files.size(directory.resolve(IssnWriteQueue.LOG_FILE)));
+        assertEquals(new HashSet<>(Arrays.asList(goneId.toString(), failingId.toString())),
+                     journals(IssnWriteQueue.PARKED_FILE));
+        assertEquals(2, underTest.stats().getInt("parked"));
+        underTest.close();
+    }
+
+    /**
+     * test that an addition made once the queue is closed is refused before it is logged
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void closedTest() throws Exception {
+        IssnWriteQueue underTest = new IssnWriteQueue(directory, passClientMock, 60000, 50, 10);
+        underTest.close();
+        try {
+            underTest.add(journalId, Collections.singletonList("Online:0000-0002"));
+            fail("Expected the addition to be refused");
+        } catch (IOException e) {
+            //expected
+        }
+        assertEquals(0, Files.size(directory.resolve(IssnWriteQueue.LOG_FILE)));
+        verify(passClientMock, never()).updateResource(any());
+    }
+
+    //the journals with additions in a file in the queue directory
+    private Set<String> journals(String name) throws IOException {
+        Set<String> journals = new HashSet<>();
+        for (String line : Files.readAllLines(directory.resolve(name), UTF_8)) {
+            journals.add(Json.createReader(new StringReader(line)).readObject().getString("journal"));
+        }
+        return journals;
+    }
+}
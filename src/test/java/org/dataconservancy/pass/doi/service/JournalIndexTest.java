@@ -0,0 +1,261 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the in-memory journal index, loaded from a stand-in for the PASS index
+ */
+public class JournalIndexTest {
+
+    private HttpServer index;
+    private AtomicInteger searches = new AtomicInteger();
+    private List<JsonObject> journals;
+    private JournalIndex underTest;
+
+    private JsonObject journal(String id, String name, String... issns) {
+        JsonArrayBuilder issnArray = Json.createArrayBuilder();
+        Arrays.stream(issns).forEach(issnArray::add);
+        return Json.createObjectBuilder()
+                   .add("@id", id)
+                   .add("@type", "Journal")
+                   .add("name", name)
+                   .add("issns", issnArray)
+                   .build();
+    }
+
+    /**
+     * start an http server which pages through its journals in order of id, as the PASS index does
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Before
+    public void setUp() throws Exception {
+        journals = new ArrayList<>(Arrays.asList(
+            journal("http://example.org/a", "Fancy Journal", "Print:0000-0001", "Online:0000-0002"),
+            journal("http://example.org/b", "Fancy  journal", "Online:0000-0003"),
+            journal("http://example.org/c", "Plain Journal", "Print:0000-0004")));
+
+        index = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        index.createContext("/pass/_search", exchange -> {
+            searches.incrementAndGet();
+            JsonObject query;
+            try (InputStream in = exchange.getRequestBody(); JsonReader reader = Json.createReader(in)) {
+                query = reader.readObject();
+            }
+            int size = query.getInt("size");
+            String after = query.containsKey("search_after") ? query.getJsonArray("search_after").getString(0) : "";
+
+            JsonArrayBuilder hits = Json.createArrayBuilder();
+            journals.stream()
+                    .filter(journal -> journal.getString("@id").compareTo(after) > 0)
+                    .sorted((a, b) -> a.getString("@id").compareTo(b.getString("@id")))
+                    .limit(size)
+                    .forEach(journal -> hits.add(Json.createObjectBuilder()
+                                                     .add("_source", journal)
+                                                     .add("sort", Json.createArrayBuilder()
+                                                                      .add(journal.getString("@id")))));
+
+            byte[] body = Json.createObjectBuilder()
+                              .add("hits", Json.createObjectBuilder().add("hits", hits))
+                              .build().toString().getBytes(UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        index.start();
+
+        underTest = new JournalIndex(new OkHttpClient(),
+                                     "http://localhost:" + index.getAddress().getPort() + "/pass", 2);
+    }
+
+    @After
+    public void tearDown() {
+        index.stop(0);
+    }
+
+    /**
+     * test that a scan reads every journal, a page at a time, and scores them as the PASS index would
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void scanTest() throws Exception {
+        assertFalse(underTest.isLoaded());
+        underTest.refresh();
+
+        assertTrue(underTest.isLoaded());
+        assertEquals(3, underTest.size());
+        assertEquals(2, searches.get());
+
+        Map<URI, Integer> expected = new HashMap<>();
+        expected.put(URI.create("http://example.org/a"), 3);
+        expected.put(URI.create("http://example.org/b"), 2);
+        assertEquals(expected, underTest.match("Fancy Journal", Arrays.asList("Print:0000-0001", "Online:0000-0002",
+                                                                               "Online:0000-0003")).totals());
+
+        //types must agree, as they must in the index
+        assertTrue(underTest.match(null, Collections.singletonList("Online:0000-0004")).totals().isEmpty());
+        assertTrue(underTest.match(null, Collections.singletonList("0000-0004")).totals().isEmpty());
+    }
+
+    /**
+     * test that the index follows our own writes, and that a rescan drops journals which have gone from PASS
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void updateTest() throws Exception {
+        underTest.refresh();
+
+        URI created = URI.create("http://example.org/d");
+        underTest.put(created, "New Journal", Collections.singletonList("Print:0000-0005"));
+        underTest.put(URI.create("http://example.org/c"), "Plain Journal",
+                      Arrays.asList("Print:0000-0004", "Online:0000-0006"));
+        assertEquals(Collections.singletonMap(created, 1),
+                     underTest.match("new journal", Collections.emptyList()).totals());
+        assertEquals(Collections.singletonMap(URI.create("http://example.org/c"), 2),
+                     underTest.match(null, Arrays.asList("Print:0000-0004", "Online:0000-0006")).totals());
+
+        journals.remove(0);
+        journals.add(journal("http://example.org/d", "New Journal", "Print:0000-0005"));
+        underTest.refresh();
+
+        assertEquals(3, underTest.size());
+        assertTrue(underTest.match(null, Collections.singletonList("Print:0000-0001")).totals().isEmpty());
+        assertEquals(Collections.singletonMap(created, 1),
+                     underTest.match(null, Collections.singletonList("Print:0000-0005")).totals());
+    }
+
+    /**
+     * test matching on valid issns, which the index holds encoded, and that the best match goes to the journal with
+     * the top score, or the lowest id among equals
+     */
+    @Test
+    public void encodedIssnTest() {
+        URI first = URI.create("http://example.org/e");
+        URI second = URI.create("http://example.org/f");
+        underTest.put(first, "Clinical Medicine Insights: Cardiology", Collections.singletonList("Print:1179-5468"));
+        underTest.put(second, "Clinical Medicine Insights", Arrays.asList("Online:1179-5468", "Print:0378-5955"));
+
+        assertEquals(Collections.singletonMap(first, 1),
+                     underTest.match(null, Collections.singletonList("Print:1179-5468")).totals());
+        Map<URI, Integer> expected = new HashMap<>();
+        expected.put(first, 1);
+        expected.put(second, 1);
+        assertEquals(expected,
+                     underTest.match(null, Arrays.asList("Print:1179-5468", "Online:1179-5468")).totals());
+
+        assertEquals(first, underTest.best(null, Arrays.asList("Print:1179-5468", "Online:1179-5468")));
+        assertEquals(second, underTest.best(null, Arrays.asList("Online:1179-5468", "Print:0378-5955")));
+        assertEquals(null, underTest.best("Another Journal", Collections.singletonList("Print:2049-3630")));
+
+        //issns match only as typed, as they do in the index
+        assertEquals(null, underTest.best(null, Collections.singletonList("1179-5468")));
+        assertEquals(null, underTest.best(null, Collections.singletonList(":1179-5468")));
+        assertEquals(null, underTest.best(null, Collections.singletonList("Print:11795468")));
+        URI third = URI.create("http://example.org/g");
+        underTest.put(third, "Open Biology", Arrays.asList(":2049-3630", "Print:20493630"));
+        assertEquals(third, underTest.best(null, Collections.singletonList(":2049-3630")));
+        assertEquals(null, underTest.best(null, Collections.singletonList("2049-3630")));
+        assertEquals(null, underTest.best(null, Collections.singletonList("Print:2049-3630")));
+        assertEquals(third, underTest.best(null, Collections.singletonList("Print:20493630")));
+
+        underTest.remove(first);
+        assertEquals(second, underTest.best(null, Arrays.asList("Print:1179-5468", "Online:1179-5468")));
+        underTest.remove(third);
+        assertEquals(null, underTest.best(null, Collections.singletonList("Print:20493630")));
+    }
+
+    /**
+     * test that a journal with a similar name is matched when the issns are not decisive, and only then
+     */
+    @Test
+    public void similarNameTest() {
+        JournalIndex similar = new JournalIndex(new OkHttpClient(), "http://localhost/pass", 2, 0.8, 1000);
+        URI jbc = URI.create("http://example.org/jbc");
+        URI other = URI.create("http://example.org/other");
+        similar.put(jbc, "The Journal of Biological Chemistry", Collections.singletonList("Print:0021-9258"));
+        similar.put(other, "Biological Chemistry", Collections.singletonList("Print:1431-6730"));
+
+        //no issn matches, so the abbreviated name finds the journal
+        assertEquals(jbc, similar.best("J. Biol. Chem.", Collections.singletonList("Online:1083-351X")));
+        JournalScores scores = similar.match("J. Biol. Chem.", Collections.singletonList("Online:1083-351X"));
+        assertEquals(Collections.singletonMap(jbc, 1), scores.totals());
+        double similarity = scores.explain().getJsonObject(0).getJsonNumber("name-similarity").doubleValue();
+        assertTrue(similarity > TrigramIndex.ABBREVIATED_MIN && similarity < TrigramIndex.ABBREVIATED);
+
+        //differences of case and punctuation are ignored
+        assertEquals(jbc, similar.best("journal of biological chemistry.", Collections.emptyList()));
+
+        //a decisive issn match is left alone
+        assertEquals(Collections.singletonMap(other, 1),
+                     similar.match("J. Biol. Chem.", Collections.singletonList("Print:1431-6730")).totals());
+
+        //names which are not alike enough do not match, and without a similarity only exact names match
+        assertTrue(similar.match("Journal of Clinical Oncology", Collections.emptyList()).totals().isEmpty());
+        underTest.put(jbc, "The Journal of Biological Chemistry", Collections.singletonList("Print:0021-9258"));
+        assertTrue(underTest.match("J. Biol. Chem.", Collections.emptyList()).totals().isEmpty());
+    }
+
+    /**
+     * test that a name about as similar to two journals matches neither, rather than the one with the lower id
+     */
+    @Test
+    public void ambiguousSimilarNameTest() {
+        JournalIndex similar = new JournalIndex(new OkHttpClient(), "http://localhost/pass", 2, 0.8, 1000);
+        URI physiology = URI.create("http://example.org/a");
+        URI physics = URI.create("http://example.org/b");
+        similar.put(physiology, "Journal of Physiology", Collections.singletonList("Print:0022-3751"));
+        similar.put(physics, "Journal of Physics", Collections.emptyList());
+
+        assertNull(similar.best("J. Phys.", Collections.emptyList()));
+        assertTrue(similar.match("J. Phys.", Collections.emptyList()).isEmpty());
+
+        //once the name is no longer in doubt, it matches
+        similar.remove(physiology);
+        assertEquals(physics, similar.best("J. Phys.", Collections.emptyList()));
+    }
+}
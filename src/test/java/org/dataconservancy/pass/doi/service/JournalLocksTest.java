@@ -0,0 +1,197 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the locks taken while creating journals
+ */
+public class JournalLocksTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AtomicLong now = new AtomicLong(1000000);
+
+    private URI journal = URI.create("http://example.org/journal");
+
+    /**
+     * test that keys do not depend on the order, type or form of the issns
+     */
+    @Test
+    public void keyTest() {
+        assertEquals("00000001,0000000X", JournalLocks.key(Arrays.asList("Online:0000-000x", "Print:0000-0001")));
+        assertEquals("00000001,0000000X", JournalLocks.key(Arrays.asList(":0000-0001", "0000000X", "Print:0000-0001")));
+    }
+
+    /**
+     * test that a lease is held by one at a time, and that a waiter sees the journal created by the holder until it is
+     * forgotten
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void inMemoryTest() throws Exception {
+        exclusion(new InMemoryJournalLocks(60000, now::get));
+    }
+
+    /**
+     * test that file locks behave as in-memory locks, and are shared by instances using the same directory
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void fileTest() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        exclusion(new FileJournalLocks(directory, 60000, 60000, now::get));
+
+        JournalLocks first = new FileJournalLocks(directory, 60000, 60000, now::get);
+        JournalLocks second = new FileJournalLocks(directory, 60000, 60000, now::get);
+        try (JournalLocks.Lease lease = first.acquire("00000001", 1000)) {
+            assertNotNull(lease);
+            assertNull(second.acquire("00000001", 100));
+        }
+        try (JournalLocks.Lease lease = second.acquire("00000001", 100)) {
+            assertNotNull(lease);
+        }
+    }
+
+    /**
+     * test that a lease which is never released lapses, and that its holder does not then release the next lease
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void lapsedLeaseTest() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        JournalLocks locks = new FileJournalLocks(directory, 60000, 60000, now::get);
+        JournalLocks.Lease abandoned = locks.acquire("00000001", 1000);
+        assertNotNull(abandoned);
+        assertNull(locks.acquire("00000001", 100));
+
+        now.addAndGet(60001);
+        try (JournalLocks.Lease lease = locks.acquire("00000001", 1000)) {
+            assertNotNull(lease);
+            abandoned.close();
+            assertTrue(Files.exists(directory.resolve(FileJournalLocks.fileName("00000001") + ".lock")));
+        }
+    }
+
+    /**
+     * test that of two instances which both find a lease lapsed, the second to break it does not break the lease the
+     * first then takes, and that only one of many instances breaking a lapsed lease at once gets it
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void concurrentBreakTest() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        FileJournalLocks first = new FileJournalLocks(directory, 60000, 60000, now::get);
+        FileJournalLocks second = new FileJournalLocks(directory, 60000, 60000, now::get);
+        Path lock = directory.resolve(FileJournalLocks.fileName("00000001") + ".lock");
+        assertNotNull(first.acquire("00000001", 1000));
+        String lapsed = Files.readAllLines(lock, UTF_8).get(0);
+        now.addAndGet(60001);
+
+        //both have read the lapsed lease; the first breaks it and takes the key
+        assertTrue(first.delete(lock, lapsed));
+        JournalLocks.Lease taken = first.acquire("00000001", 1000);
+        assertNotNull(taken);
+        String current = Files.readAllLines(lock, UTF_8).get(0);
+        assertFalse(second.delete(lock, lapsed));
+        assertEquals(current, Files.readAllLines(lock, UTF_8).get(0));
+        assertNull(second.acquire("00000001", 100));
+        taken.close();
+        assertFalse(Files.exists(lock));
+
+        assertNotNull(first.acquire("00000001", 1000));
+        now.addAndGet(60001);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<JournalLocks.Lease>> breakers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                FileJournalLocks locks = new FileJournalLocks(directory, 60000, 60000, now::get);
+                breakers.add(executor.submit(() -> locks.acquire("00000001", 500)));
+            }
+            int held = 0;
+            for (Future<JournalLocks.Lease> breaker : breakers) {
+                held += breaker.get(10, TimeUnit.SECONDS) != null ? 1 : 0;
+            }
+            assertEquals(1, held);
+        } finally {
+            executor.shutdownNow();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                assertEquals(lock, file);
+            }
+        }
+    }
+
+    private void exclusion(JournalLocks locks) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<URI> waiter;
+            try (JournalLocks.Lease lease = locks.acquire("00000001,0000000X", 1000)) {
+                assertNotNull(lease);
+                assertNull(lease.getCreated());
+                waiter = executor.submit(() -> {
+                    try (JournalLocks.Lease waited = locks.acquire("00000001,0000000X", 10000)) {
+                        return waited.getCreated();
+                    }
+                });
+                //other keys are not locked
+                try (JournalLocks.Lease other = locks.acquire("00000001", 100)) {
+                    assertNotNull(other);
+                }
+                Thread.sleep(100);
+                lease.setCreated(journal);
+            }
+            assertEquals(journal, waiter.get(10, TimeUnit.SECONDS));
+
+            now.addAndGet(60000);
+            try (JournalLocks.Lease lease = locks.acquire("00000001,0000000X", 1000)) {
+                assertNull(lease.getCreated());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
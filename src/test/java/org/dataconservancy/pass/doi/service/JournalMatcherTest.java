@@ -0,0 +1,171 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the single-query journal matcher, against a stand-in for the PASS index
+ */
+public class JournalMatcherTest {
+
+    private static final Pattern CLAUSE = Pattern.compile("(name|issns):\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private HttpServer index;
+    private AtomicInteger searches = new AtomicInteger();
+    private List<JsonObject> journals;
+    private JournalMatcher underTest;
+
+    private JsonObject journal(String id, String name, String... issns) {
+        JsonArrayBuilder issnArray = Json.createArrayBuilder();
+        Arrays.stream(issns).forEach(issnArray::add);
+        return Json.createObjectBuilder()
+                   .add("@id", id)
+                   .add("@type", "Journal")
+                   .add("name", name)
+                   .add("issns", issnArray)
+                   .build();
+    }
+
+    /**
+     * start an http server which answers searches by exact matching on name and issns, as the PASS index does
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Before
+    public void setUp() throws Exception {
+        journals = Arrays.asList(journal("http://example.org/a", "Fancy Journal", "Print:0000-0001",
+                                         "Online:0000-0002"),
+                                 journal("http://example.org/b", "Fancy Journal", "Online:0000-0003"),
+                                 journal("http://example.org/c", "Plain \"Quoted\" Journal", "Print:0000-0004"));
+
+        index = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        index.createContext("/pass/_search", exchange -> {
+            searches.incrementAndGet();
+            JsonObject query;
+            try (InputStream in = exchange.getRequestBody(); JsonReader reader = Json.createReader(in)) {
+                query = reader.readObject();
+            }
+            String queryString = query.getJsonObject("query").getJsonObject("query_string").getString("query");
+
+            JsonArrayBuilder hits = Json.createArrayBuilder();
+            for (JsonObject journal : journals) {
+                Matcher clause = CLAUSE.matcher(queryString);
+                boolean matched = false;
+                while (clause.find() && !matched) {
+                    String value = clause.group(2).replace("\\\"", "\"").replace("\\\\", "\\");
+                    matched = clause.group(1).equals("name") ? journal.getString("name").equals(value) :
+                              journal.getJsonArray("issns").contains(Json.createValue(value));
+                }
+                if (matched) {
+                    hits.add(Json.createObjectBuilder().add("_source", journal));
+                }
+            }
+
+            byte[] body = Json.createObjectBuilder()
+                              .add("hits", Json.createObjectBuilder().add("hits", hits))
+                              .build().toString().getBytes(UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        index.start();
+
+        underTest = new JournalMatcher(new OkHttpClient(),
+                                       "http://localhost:" + index.getAddress().getPort() + "/pass", 100);
+    }
+
+    @After
+    public void tearDown() {
+        index.stop(0);
+    }
+
+    /**
+     * test that one query gives the same scores as a lookup for the name plus a lookup for each issn
+     */
+    @Test
+    public void scoreTest() {
+        Map<URI, Integer> scores = underTest.match("Fancy Journal", Arrays.asList("Print:0000-0001",
+                                                                                  "Online:0000-0002",
+                                                                                  "Online:0000-0003"))
+                                            .totals();
+        Map<URI, Integer> expected = new HashMap<>();
+        expected.put(URI.create("http://example.org/a"), 3);
+        expected.put(URI.create("http://example.org/b"), 2);
+
+        assertEquals(expected, scores);
+        assertEquals(1, searches.get());
+    }
+
+    /**
+     * test that issns alone are scored, and that names are matched exactly, quotes and all
+     */
+    @Test
+    public void exactMatchTest() {
+        assertEquals(Collections.singletonMap(URI.create("http://example.org/b"), 1),
+                     underTest.match(null, Collections.singletonList("Online:0000-0003")).totals());
+        assertEquals(Collections.singletonMap(URI.create("http://example.org/c"), 1),
+                     underTest.match("Plain \"Quoted\" Journal", Collections.singletonList("Print:9999-9999"))
+                              .totals());
+        assertTrue(underTest.match("Fancy", Collections.emptyList()).totals().isEmpty());
+        assertEquals(3, searches.get());
+    }
+
+    /**
+     * test that several journals are scored with one query, each as if it had been scored on its own
+     */
+    @Test
+    public void scoreAllTest() {
+        JournalMatcher.Query fancy = new JournalMatcher.Query("Fancy Journal",
+                                                              Collections.singletonList("Print:0000-0001"));
+        JournalMatcher.Query quoted = new JournalMatcher.Query(null, Collections.singletonList("Print:0000-0004"));
+        Map<JournalMatcher.Query, JournalScores> scores = underTest.scoreAll(Arrays.asList(fancy, quoted));
+
+        Map<URI, Integer> expected = new HashMap<>();
+        expected.put(URI.create("http://example.org/a"), 2);
+        expected.put(URI.create("http://example.org/b"), 1);
+        assertEquals(expected, scores.get(fancy).totals());
+        assertEquals(Collections.singletonMap(URI.create("http://example.org/c"), 1), scores.get(quoted).totals());
+        assertEquals(1, searches.get());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for picking the best match from journal scores
+ */
+public class JournalScoresTest {
+
+    private URI a = URI.create("http://example.org/a");
+    private URI b = URI.create("http://example.org/b");
+    private URI c = URI.create("http://example.org/c");
+
+    /**
+     * test each step of the tie-break, whatever order the matches were added in
+     */
+    @Test
+    public void tieBreakTest() {
+        JournalScores scores = new JournalScores();
+        assertNull(scores.best());
+
+        //the highest score wins
+        scores.addIssnMatch(c);
+        scores.addNameMatch(c);
+        scores.addIssnMatch(a);
+        assertEquals(c, scores.best());
+
+        //among equal scores, the most issn matches wins
+        scores.addIssnMatch(b);
+        scores.addIssnMatch(b);
+        assertEquals(b, scores.best());
+
+        //then the lowest id
+        scores.addIssnMatch(a);
+        assertEquals(a, scores.best());
+        assertEquals(a.toString(), scores.explain().getJsonObject(0).getString("journal-id"));
+        assertEquals(c.toString(), scores.explain().getJsonObject(2).getString("journal-id"));
+    }
+
+    /**
+     * test that a name match breaks a tie between journals with the same issn matches
+     */
+    @Test
+    public void nameMatchTest() {
+        assertEquals(true, JournalScores.better(1, true, b, 1, false, a));
+        assertEquals(false, JournalScores.better(1, false, a, 1, true, b));
+        assertEquals(true, JournalScores.better(0, true, a, 0, true, b));
+    }
+
+    /**
+     * test that a similar name ranks below an exact name, and by its similarity
+     */
+    @Test
+    public void similarNameTest() {
+        JournalScores scores = new JournalScores();
+        scores.addSimilarName(a, 0.9);
+        scores.addNameMatch(b);
+        assertEquals(b, scores.best());
+
+        scores = new JournalScores();
+        scores.addSimilarName(a, 0.85);
+        scores.addSimilarName(b, 0.9);
+        assertEquals(b, scores.best());
+        assertEquals(b.toString(), scores.explain().getJsonObject(0).getString("journal-id"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dataconservancy.pass.model.Journal;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the cache of PASS journal state
+ */
+public class JournalStateCacheTest {
+
+    private AtomicLong now = new AtomicLong(1000);
+
+    private JournalStateCache underTest;
+
+    @Before
+    public void setUp() {
+        underTest = new JournalStateCache(2, 1000, now::get);
+    }
+
+    /**
+     * test that journals are found, with their version tag, until they expire, and that they are copied in and out
+     */
+    @Test
+    public void hitAndExpiryTest() {
+        Journal journal = journal("a");
+        underTest.put(journal);
+        journal.getIssns().add("Online:0000-0002");
+
+        Journal cached = underTest.get(journal.getId());
+        assertNotSame(journal, cached);
+        assertEquals(Collections.singletonList("Print:0000-0001"), cached.getIssns());
+        assertEquals("v1", cached.getVersionTag());
+        cached.getIssns().add("Online:0000-0002");
+        assertEquals(1, underTest.get(journal.getId()).getIssns().size());
+
+        now.addAndGet(1000);
+        assertNull(underTest.get(journal.getId()));
+        assertEquals(0, underTest.size());
+        assertEquals(2, underTest.stats().getInt("hits"));
+        assertEquals(1, underTest.stats().getInt("misses"));
+    }
+
+    /**
+     * test that an invalidated journal is dropped, and that the least recently used journal is evicted when the
+     * cache is full
+     */
+    @Test
+    public void invalidateAndEvictionTest() {
+        Journal a = journal("a");
+        Journal b = journal("b");
+        underTest.put(a);
+        underTest.put(b);
+        underTest.invalidate(b.getId());
+        assertNull(underTest.get(b.getId()));
+        assertEquals(1, underTest.stats().getInt("invalidations"));
+
+        underTest.put(b);
+        underTest.get(a.getId());
+        underTest.put(journal("c"));
+        assertEquals(2, underTest.size());
+        assertEquals(1, underTest.stats().getInt("evictions"));
+        assertNull(underTest.get(b.getId()));
+        assertEquals(a.getId(), underTest.get(a.getId()).getId());
+    }
+
+    /**
+     * test that nothing is kept when the cache is disabled
+     */
+    @Test
+    public void disabledTest() {
+        underTest = new JournalStateCache(0, 1000, now::get);
+        underTest.put(journal("a"));
+        assertEquals(0, underTest.size());
+    }
+
+    private Journal journal(String id) {
+        Journal journal = new Journal();
+        journal.setId(URI.create("http://example.org/" + id));
+        journal.setIssns(new ArrayList<>(Collections.singletonList("Print:0000-0001")));
+        journal.setVersionTag("v1");
+        return journal;
+    }
+}
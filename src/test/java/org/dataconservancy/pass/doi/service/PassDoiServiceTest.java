@@ -16,34 +16,70 @@
  */
 package org.dataconservancy.pass.doi.service;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
-
+import javax.json.stream.JsonGenerator;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import okhttp3.OkHttpClient;
 import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.client.PassJsonAdapter;
 import org.dataconservancy.pass.client.adapter.PassJsonAdapterBasic;
+import org.dataconservancy.pass.client.fedora.UpdateConflictException;
 import org.dataconservancy.pass.model.Journal;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -355,6 +391,123 @@ public class PassDoiServiceTest {
 
     }
 
+    /**
+     * Test that a journal which already has its issns is read from PASS only once, that an update made from a cached
+     * journal which has since changed in PASS is made again from a fresh read, and that a journal we have updated is
+     * read again before it is next updated
+     */
+    @Test
+    public void journalStateCacheTest() {
+        AtomicInteger reads = new AtomicInteger();
+        when(passClientMock.readResource(missingOneIssnId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(missingOneIssnId);
+            journal.setJournalName(journalName);
+            journal.setIssns(new ArrayList<>(Collections.singletonList(issn5)));
+            journal.setVersionTag("v" + reads.incrementAndGet());
+            return journal;
+        });
+        //PASS has moved on from the first version by the time we update
+        doAnswer(i -> {
+            if ("v1".equals(i.<Journal>getArgument(0).getVersionTag())) {
+                throw new UpdateConflictException("Precondition failed");
+            }
+            return null;
+        }).when(passClientMock).updateResource(any());
+
+        Journal xrefJournal = new Journal();
+        xrefJournal.getIssns().add(issn5);
+        underTest.updateJournalInPass(xrefJournal);
+        underTest.updateJournalInPass(xrefJournal);
+        assertEquals(1, reads.get());
+
+        xrefJournal.getIssns().add(issn6);
+        assertEquals(Arrays.asList(issn5, issn6), underTest.updateJournalInPass(xrefJournal).getIssns());
+        assertEquals(2, reads.get());
+        verify(passClientMock, times(2)).updateResource(any());
+
+        assertEquals(Arrays.asList(issn5, issn6), underTest.updateJournalInPass(xrefJournal).getIssns());
+        assertEquals(2, reads.get());
+
+        xrefJournal.getIssns().add(issn3);
+        assertEquals(Arrays.asList(issn5, issn6, issn3), underTest.updateJournalInPass(xrefJournal).getIssns());
+        assertEquals(3, reads.get());
+        verify(passClientMock, times(3)).updateResource(any());
+    }
+
+    /**
+     * Test that issns missing from a journal are queued to be written, rather than written on the request, and that
+     * the journal returned has them, as does the journal for a later request made before they are written
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void writeBehindTest() throws Exception {
+        when(passClientMock.readResource(missingOneIssnId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(missingOneIssnId);
+            journal.setJournalName(journalName);
+            journal.setIssns(new ArrayList<>(Collections.singletonList(issn5)));
+            return journal;
+        });
+        underTest.issnWrites = new IssnWriteQueue(Files.createTempDirectory("issn-writes"), passClientMock, 60000, 50,
+                                                  10);
+
+        Journal xrefJournal = new Journal();
+        xrefJournal.getIssns().add(issn5);
+        xrefJournal.getIssns().add(issn6);
+        assertEquals(Arrays.asList(issn5, issn6), underTest.updateJournalInPass(xrefJournal).getIssns());
+        assertEquals(Arrays.asList(issn5, issn6), underTest.updateJournalInPass(xrefJournal).getIssns());
+        verify(passClientMock, never()).updateResource(any());
+        assertEquals(1, underTest.issnWrites.size());
+
+        underTest.issnWrites.flush();
+        ArgumentCaptor<Journal> updated = ArgumentCaptor.forClass(Journal.class);
+        verify(passClientMock).updateResource(updated.capture());
+        assertEquals(Arrays.asList(issn5, issn6), updated.getValue().getIssns());
+        underTest.issnWrites.close();
+    }
+
+    /**
+     * Test that when issns cannot be queued, a cached journal we have updated is read again before being updated
+     * directly, so that changes made in PASS since are kept
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void unqueuedWriteTest() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        when(passClientMock.readResource(missingOneIssnId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(missingOneIssnId);
+            journal.setJournalName(journalName);
+            //after our first update, someone else adds an issn
+            journal.setIssns(new ArrayList<>(reads.incrementAndGet() == 1 ? Collections.singletonList(issn5) :
+                                             Arrays.asList(issn5, issn6, issn4)));
+            journal.setVersionTag("v" + reads.get());
+            return journal;
+        });
+        underTest.issnWrites = mock(IssnWriteQueue.class);
+        doAnswer(i -> {
+            throw new IOException("disk full");
+        }).when(underTest.issnWrites).add(any(), any());
+
+        Journal xrefJournal = new Journal();
+        xrefJournal.getIssns().add(issn5);
+        xrefJournal.getIssns().add(issn6);
+        assertEquals(Arrays.asList(issn5, issn6), underTest.updateJournalInPass(xrefJournal).getIssns());
+        assertEquals(1, reads.get());
+
+        xrefJournal.getIssns().add(issn3);
+        assertEquals(new HashSet<>(Arrays.asList(issn5, issn6, issn4, issn3)),
+                     new HashSet<>(underTest.updateJournalInPass(xrefJournal).getIssns()));
+        assertEquals(2, reads.get());
+        ArgumentCaptor<Journal> updated = ArgumentCaptor.forClass(Journal.class);
+        verify(passClientMock, times(2)).updateResource(updated.capture());
+        assertEquals(Arrays.asList(issn5, issn6, issn4, issn3), updated.getValue().getIssns());
+        assertEquals("v2", updated.getValue().getVersionTag());
+    }
+
     /**
      * Test that the find() method returns the urI best matching the supplied arguments
      */
@@ -385,13 +538,649 @@ public class PassDoiServiceTest {
 
     }
 
+    /**
+     * Test that the explain endpoint shows the scores behind a match, and that ties on the score go to the journal
+     * matching the most issns, whichever order the index returns them in
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void explainTest() throws Exception {
+        URI x = URI.create("http://example.org:2020/x");
+        URI y = URI.create("http://example.org:2020/y");
+        URI z = URI.create("http://example.org:2020/z");
+        String print = String.join(":", PassDoiServlet.IssnType.PRINT.getPassTypeString(), "1179-5468");
+        String online = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "1179-5468");
+        when(passClientMock.findAllByAttribute(Journal.class, "name", "Clinical Medicine Insights: Cardiology"))
+            .thenReturn(new HashSet<>(Collections.singleton(x)));
+        when(passClientMock.findAllByAttribute(Journal.class, "issns", print)).thenReturn(
+            new HashSet<>(Arrays.asList(x, y)));
+        when(passClientMock.findAllByAttribute(Journal.class, "issns", online)).thenReturn(
+            new HashSet<>(Arrays.asList(y, z)));
+
+        PassDoiServlet explaining = new PassDoiServlet();
+        explaining.passClient = passClientMock;
+        explaining.init(null);
+        explaining.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                                 explaining.xrefScheduler) {
+            @Override
+            JsonObject retrieve(String doi, boolean full) {
+                try (JsonReader reader = Json.createReader(new StringReader(xrefJson))) {
+                    return reader.readObject();
+                }
+            }
+        };
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(request.getServletPath()).thenReturn("/journal/explain");
+        when(request.getParameter("doi")).thenReturn("10.4137/cmc.s38446");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+        explaining.doGet(request, response);
+
+        verify(response).setStatus(200);
+        JsonObject explanation;
+        try (JsonReader reader = Json.createReader(new StringReader(body.toString("UTF-8")))) {
+            explanation = reader.readObject();
+        }
+        assertEquals("index-lookups", explanation.getString("method"));
+        assertEquals(y.toString(), explanation.getString("best"));
+        List<String> ranked = new ArrayList<>();
+        explanation.getJsonArray("candidates").forEach(
+            candidate -> ranked.add(candidate.asJsonObject().getString("journal-id")));
+        assertEquals(Arrays.asList(y.toString(), x.toString(), z.toString()), ranked);
+        assertTrue(explanation.getJsonArray("candidates").getJsonObject(1).getBoolean("name-match"));
+        verify(passClientMock, never()).createAndReadResource(any(), eq(Journal.class));
+        assertEquals(y, explaining.find("Clinical Medicine Insights: Cardiology", Arrays.asList(print, online)));
+    }
+
+    /**
+     * Test that a stalled index lookup does not hold up find() once another lookup has produced a match, and that
+     * the partial result is not cached
+     */
+    @Test
+    public void stalledLookupDeadlineTest() {
+        CountDownLatch stall = new CountDownLatch(1);
+        when(passClientMock.findAllByAttribute(Journal.class, "issns", issn3)).thenAnswer(i -> {
+            stall.await(10, TimeUnit.SECONDS);
+            return Collections.emptySet();
+        });
+        underTest.indexDeadline = 100;
+
+        long start = System.currentTimeMillis();
+        URI resultUri = underTest.find(journalName, Arrays.asList(issn1, issn3));
+        stall.countDown();
+
+        assertEquals(completeId, resultUri);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertNull(underTest.journalCache.get(journalName, Arrays.asList(issn1, issn3)));
+    }
+
+    /**
+     * Test that a journal which has been resolved or created once is found again without going to the index
+     */
+    @Test
+    public void journalResolutionCacheTest() {
+        URI resultUri = underTest.find(journalName, Arrays.asList(issn1, issn2));
+        assertEquals(completeId, resultUri);
+        resultUri = underTest.find(journalName, Arrays.asList(issn2, issn1));
+        assertEquals(completeId, resultUri);
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "issns", issn1);
+
+        Journal xrefJournal = new Journal();
+        xrefJournal.getIssns().add(issn6);
+        xrefJournal.setJournalName("Advanced Research in Animal Husbandry");
+        underTest.updateJournalInPass(xrefJournal);
+
+        resultUri = underTest.find("Advanced Research in Animal Husbandry", Collections.singletonList(issn6));
+        assertEquals(newJournalId, resultUri);
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "issns", issn6);
+    }
+
+    /**
+     * Test that two instances of the service sharing a lock directory, given DOIs of the same new journal at once,
+     * create it only once, the second using the journal created by the first
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void sharedJournalCreationTest() throws Exception {
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Journal created = new Journal();
+        created.setId(newJournalId);
+        created.setJournalName("Advanced Research in Animal Husbandry");
+        created.setIssns(new ArrayList<>(Collections.singletonList(issn6)));
+        when(passClientMock.createAndReadResource(any(), eq(Journal.class))).thenAnswer(i -> {
+            creating.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return created;
+        });
+        when(passClientMock.readResource(newJournalId, Journal.class)).thenReturn(created);
+
+        Path directory = Files.createTempDirectory("journal-locks");
+        PassDoiServlet other = new PassDoiServlet();
+        other.passClient = passClientMock;
+        other.init(null);
+        underTest.journalLocks = new FileJournalLocks(directory, 60000, 60000);
+        other.journalLocks = new FileJournalLocks(directory, 60000, 60000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Journal> first = executor.submit(() -> underTest.updateJournalInPass(husbandry()));
+            assertTrue(creating.await(10, TimeUnit.SECONDS));
+            Future<Journal> second = executor.submit(() -> other.updateJournalInPass(husbandry()));
+            Thread.sleep(200);
+            release.countDown();
+
+            assertEquals(newJournalId, first.get(10, TimeUnit.SECONDS).getId());
+            assertEquals(newJournalId, second.get(10, TimeUnit.SECONDS).getId());
+            verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+            verify(passClientMock, never()).updateResource(any());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Journal husbandry() {
+        Journal journal = new Journal();
+        journal.getIssns().add(issn6);
+        journal.setJournalName("Advanced Research in Animal Husbandry");
+        return journal;
+    }
+
+    /**
+     * Test that concurrent requests for the same DOI share a single resolution rather than being rejected
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void concurrentRequestsShareResolutionTest() throws Exception {
+        AtomicInteger xrefCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        PassDoiServlet coalescing = new PassDoiServlet();
+        coalescing.passClient = passClientMock;
+        coalescing.init(null);
+        coalescing.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                                 coalescing.xrefScheduler) {
+            @Override
+            JsonObject retrieve(String doi, boolean full) {
+                xrefCalls.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                JsonReader reader = Json.createReader(new StringReader(xrefJson));
+                JsonObject object = reader.readObject();
+                reader.close();
+                return object;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<JournalResult> first = executor.submit(() -> coalescing.resolveShared("10.4137/cmc.s38446"));
+            while (xrefCalls.get() == 0) {
+                Thread.sleep(10);
+            }
+            Future<JournalResult> second = executor.submit(() -> coalescing.resolveShared("10.4137/CMC.S38446"));
+            Thread.sleep(200);
+            release.countDown();
+
+            assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            assertEquals(200, first.get().getStatus());
+            assertEquals(newJournalId.toString(), first.get().getJournalId());
+            assertEquals(1, xrefCalls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a request is completed asynchronously, off the container thread, when the container supports it
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void asyncRequestTest() throws Exception {
+        CompletableFuture<JsonObject> xrefResponse = new CompletableFuture<>();
+        PassDoiServlet async = new PassDoiServlet();
+        async.passClient = passClientMock;
+        async.init(null);
+        async.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                            async.xrefScheduler) {
+            @Override
+            CompletableFuture<JsonObject> retrieveAsync(String doi, boolean full) {
+                return xrefResponse;
+            }
+        };
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext context = mock(AsyncContext.class);
+        when(request.getServletPath()).thenReturn("/journal");
+        when(request.getParameter("doi")).thenReturn("10.4137/cmc.s38446");
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(context);
+        when(context.getRequest()).thenReturn(request);
+        when(context.getResponse()).thenReturn(response);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+
+        async.doGet(request, response);
+        verify(context, never()).complete();
+
+        JsonReader reader = Json.createReader(new StringReader(xrefJson));
+        xrefResponse.complete(reader.readObject());
+        reader.close();
+
+        verify(context, timeout(5000)).complete();
+        verify(response).setStatus(200);
+        reader = Json.createReader(new StringReader(body.toString("UTF-8")));
+        assertEquals(newJournalId.toString(), reader.readObject().getString("journal-id"));
+        reader.close();
+    }
+
+    /**
+     * Test that a client revalidating a result it has is answered from our caches, without going to Crossref or PASS
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void conditionalGetTest() throws Exception {
+        AtomicInteger xrefCalls = new AtomicInteger();
+        PassDoiServlet conditional = new PassDoiServlet();
+        conditional.passClient = passClientMock;
+        conditional.init(null);
+        conditional.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                                  conditional.xrefScheduler) {
+            @Override
+            JsonObject retrieve(String doi, boolean full) {
+                xrefCalls.incrementAndGet();
+                JsonReader reader = Json.createReader(new StringReader(xrefJson));
+                JsonObject object = reader.readObject();
+                reader.close();
+                return object;
+            }
+        };
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(request.getServletPath()).thenReturn("/journal");
+        when(request.getParameter("doi")).thenReturn("10.4137/cmc.s38446");
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+            }
+        });
+        conditional.doGet(request, response);
+
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(response).setStatus(200);
+        verify(response).setHeader(eq("ETag"), etag.capture());
+        verify(response).setDateHeader("Last-Modified", 1536703359538L);
+
+        HttpServletRequest revalidation = mock(HttpServletRequest.class);
+        HttpServletResponse notModified = mock(HttpServletResponse.class);
+        when(revalidation.getServletPath()).thenReturn("/journal");
+        when(revalidation.getParameter("doi")).thenReturn("10.4137/CMC.S38446");
+        when(revalidation.getHeader("If-None-Match")).thenReturn(etag.getValue());
+        conditional.doGet(revalidation, notModified);
+
+        verify(notModified).setStatus(304);
+        verify(notModified).setHeader("ETag", etag.getValue());
+        verify(notModified, never()).getOutputStream();
+        assertEquals(1, xrefCalls.get());
+        verify(passClientMock, never()).readResource(any(), eq(Journal.class));
+    }
+
+    /**
+     * Test that when Crossref fails, an expired record is used rather than failing the request, and marked as stale
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void staleFallbackTest() throws Exception {
+        AtomicLong now = new AtomicLong(1000);
+        AtomicInteger xrefCalls = new AtomicInteger();
+        PassDoiServlet degraded = new PassDoiServlet();
+        degraded.passClient = passClientMock;
+        degraded.init(null);
+        degraded.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(10, 1000, 1000, 60000, now::get),
+                                               degraded.xrefScheduler) {
+            @Override
+            JsonObject retrieve(String doi, boolean full) {
+                if (xrefCalls.incrementAndGet() > 1) {
+                    return null;
+                }
+                JsonReader reader = Json.createReader(new StringReader(xrefJson));
+                JsonObject object = reader.readObject();
+                reader.close();
+                return object;
+            }
+        };
+        degraded.xrefScheduler.shutdownNow();
+
+        JournalResult fresh = degraded.resolveShared("10.4137/cmc.s38446");
+        assertEquals(-1, fresh.getStaleness());
+
+        now.addAndGet(5000);
+        degraded.journalCache.clear();
+        JournalResult stale = degraded.resolveShared("10.4137/cmc.s38446");
+        assertEquals(200, stale.getStatus());
+        assertEquals(5000, stale.getStaleness());
+        assertSame(fresh.getCrossref(), stale.getCrossref());
+        assertEquals(2, xrefCalls.get());
+    }
+
+    /**
+     * Test that a batch gets a result for every DOI supplied, while duplicate DOIs and journals are resolved once
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void batchResolutionTest() throws Exception {
+        AtomicInteger xrefCalls = new AtomicInteger();
+        PassDoiServlet batch = new PassDoiServlet();
+        batch.passClient = passClientMock;
+        batch.init(null);
+        batch.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                            batch.xrefScheduler) {
+            @Override
+            CompletableFuture<JsonObject> retrieveAsync(String doi, boolean full) {
+                xrefCalls.incrementAndGet();
+                JsonReader reader = Json.createReader(new StringReader(xrefJson));
+                JsonObject object = reader.readObject();
+                reader.close();
+                return CompletableFuture.supplyAsync(() -> object);
+            }
+        };
+
+        List<String> dois = Arrays.asList("10.4137/cmc.s38446", "moo", "https://doi.org/10.4137/CMC.S38446",
+                                          "10.4137/cmc.s38447");
+        List<String> resolved = Collections.synchronizedList(new ArrayList<>());
+        batch.batchResolver.resolve(dois, (doi, result) -> {
+            resolved.add(doi);
+            if (doi.equals("moo")) {
+                assertEquals(400, result.getStatus());
+            } else {
+                assertEquals(newJournalId.toString(), result.getJournalId());
+            }
+        });
+
+        assertEquals(new HashSet<>(dois), new HashSet<>(resolved));
+        assertEquals(2, xrefCalls.get());
+        verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+    }
+
+    /**
+     * Test that a batch passes on each result as it comes in, while later DOIs are still waiting to be fetched
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test(timeout = 10000)
+    public void batchStreamingTest() throws Exception {
+        CompletableFuture<Void> firstPassedOn = new CompletableFuture<>();
+        PassDoiServlet batch = new PassDoiServlet();
+        batch.passClient = passClientMock;
+        batch.init(null);
+        batch.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                            batch.xrefScheduler) {
+            @Override
+            CompletableFuture<JsonObject> retrieveAsync(String doi, boolean full) {
+                JsonReader reader = Json.createReader(new StringReader(xrefJson));
+                JsonObject object = reader.readObject();
+                reader.close();
+                //the second lookup holds the only crossref slot until the first result is passed on
+                return doi.equals("10.4137/cmc.s38447") ?
+                       firstPassedOn.thenApply(v -> object) : CompletableFuture.supplyAsync(() -> object);
+            }
+        };
+        batch.batchResolver.shutdown();
+        batch.batchResolver = new BatchResolver(batch, 1, 1, 1);
+
+        List<String> dois = Arrays.asList("10.4137/cmc.s38446", "10.4137/cmc.s38447", "10.4137/cmc.s38448");
+        List<String> resolved = Collections.synchronizedList(new ArrayList<>());
+        batch.batchResolver.resolve(dois, (doi, result) -> {
+            resolved.add(doi);
+            assertEquals(newJournalId.toString(), result.getJournalId());
+            if (doi.equals("10.4137/cmc.s38446")) {
+                firstPassedOn.complete(null);
+            }
+        });
+
+        assertEquals(dois.get(0), resolved.get(0));
+        assertEquals(new HashSet<>(dois), new HashSet<>(resolved));
+    }
+
+    /**
+     * Test that a batch posted to a container supporting it runs off the container thread, counting as a request in
+     * progress until it is done
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void asyncBatchTest() throws Exception {
+        CompletableFuture<JsonObject> xrefResponse = new CompletableFuture<>();
+        PassDoiServlet async = new PassDoiServlet();
+        async.passClient = passClientMock;
+        async.init(null);
+        async.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                            async.xrefScheduler) {
+            @Override
+            CompletableFuture<JsonObject> retrieveAsync(String doi, boolean full) {
+                return xrefResponse;
+            }
+        };
+        int permits = async.requestPermits.availablePermits();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext context = mock(AsyncContext.class);
+        when(request.getServletPath()).thenReturn("/journal/batch");
+        when(request.getContentType()).thenReturn("text/plain");
+        byte[] dois = "10.4137/cmc.s38446\nmoo\n".getBytes(UTF_8);
+        when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            private final ByteArrayInputStream in = new ByteArrayInputStream(dois);
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+        });
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(context);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+
+        async.doPost(request, response);
+        verify(context, never()).complete();
+        assertEquals(permits - 1, async.requestPermits.availablePermits());
+
+        JsonReader reader = Json.createReader(new StringReader(xrefJson));
+        xrefResponse.complete(reader.readObject());
+        reader.close();
+
+        verify(context, timeout(5000)).complete();
+        assertEquals(permits, async.requestPermits.availablePermits());
+        reader = Json.createReader(new StringReader(body.toString("UTF-8")));
+        assertEquals(2, reader.readArray().size());
+        reader.close();
+        async.destroy();
+    }
+
+    /**
+     * Test that a batch fetches its Crossref records together, and looks up any the bulk call did not return singly
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void bulkFetchTest() throws Exception {
+        List<List<String>> bulkCalls = Collections.synchronizedList(new ArrayList<>());
+        List<String> singleCalls = Collections.synchronizedList(new ArrayList<>());
+        PassDoiServlet bulk = new PassDoiServlet();
+        bulk.passClient = passClientMock;
+        bulk.init(null);
+        bulk.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                           bulk.xrefScheduler) {
+            @Override
+            CompletableFuture<Map<String, JsonObject>> retrieveBulkAsync(List<String> dois, boolean full) {
+                bulkCalls.add(new ArrayList<>(dois));
+                return CompletableFuture.supplyAsync(
+                    () -> Collections.singletonMap(PassDoiServlet.normalize("10.4137/cmc.s38446"), works()));
+            }
+
+            @Override
+            CompletableFuture<JsonObject> retrieveAsync(String doi, boolean full) {
+                singleCalls.add(doi);
+                return CompletableFuture.supplyAsync(() -> works());
+            }
+
+            private JsonObject works() {
+                try (JsonReader reader = Json.createReader(new StringReader(xrefJson))) {
+                    return reader.readObject();
+                }
+            }
+        };
+        bulk.crossref.bulkSize = 50;
+
+        List<String> dois = Arrays.asList("10.4137/cmc.s38446", "10.4137/cmc.s38447", "10.4137/CMC.S38446");
+        List<String> resolved = Collections.synchronizedList(new ArrayList<>());
+        bulk.batchResolver.resolve(dois, (doi, result) -> {
+            resolved.add(doi);
+            assertEquals(newJournalId.toString(), result.getJournalId());
+        });
+
+        assertEquals(new HashSet<>(dois), new HashSet<>(resolved));
+        assertEquals(Collections.singletonList(Arrays.asList("10.4137/cmc.s38446", "10.4137/cmc.s38447")),
+                     bulkCalls);
+        assertEquals(Collections.singletonList("10.4137/cmc.s38447"), singleCalls);
+    }
+
+    /**
+     * Test that a client asking only for the journal gets it without the Crossref record, which we then need not
+     * keep in full
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void journalOnlyResultTest() throws Exception {
+        List<Boolean> fullRequested = Collections.synchronizedList(new ArrayList<>());
+        PassDoiServlet slim = new PassDoiServlet();
+        slim.passClient = passClientMock;
+        slim.init(null);
+        slim.crossref = new CrossrefClient(new OkHttpClient(), new CrossrefCache(1000, 3600000, 300000),
+                                           slim.xrefScheduler) {
+            @Override
+            JsonObject retrieve(String doi, boolean full) {
+                fullRequested.add(full);
+                try {
+                    return CrossrefReader.read(new ByteArrayInputStream(xrefJson.getBytes("UTF-8")), full);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        Set<JournalResult.Field> fields = JournalResult.Field.parse("journal,title");
+        JournalResult result = slim.resolveShared("10.4137/cmc.s38446", fields.contains(JournalResult.Field.CROSSREF));
+        StringWriter body = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(body)) {
+            result.write(generator, fields);
+        }
+
+        JsonReader reader = Json.createReader(new StringReader(body.toString()));
+        JsonObject object = reader.readObject();
+        reader.close();
+        assertEquals(newJournalId.toString(), object.getString("journal-id"));
+        assertFalse(object.containsKey("crossref"));
+        assertEquals(Collections.singletonList(false), fullRequested);
+
+        //a later request for the whole record cannot be served from the journal fields alone
+        Journal created = new Journal();
+        created.setId(newJournalId);
+        created.setJournalName("Clinical Medicine Insights: Cardiology");
+        created.setIssns(Arrays.asList("Print:1179-5468", "Online:1179-5468"));
+        when(passClientMock.readResource(newJournalId, Journal.class)).thenReturn(created);
+        assertTrue(slim.resolveShared("10.4137/cmc.s38446", true).getCrossref().containsKey("message-type"));
+        assertEquals(Arrays.asList(false, true), fullRequested);
+    }
+
     /**
      * test that hitting the Crossref API with a doi returns the expected JSON object
      */
     @Test
     public void testXrefLookup() {
         String realDoi = "10.4137/cmc.s38446";
-        JsonObject blob = underTest.retrieveXrefMetdata(realDoi);
+        JsonObject blob = underTest.crossref.retrieve(realDoi, true);
         //these results will differ by a timestamp - but a good check is that they return the same journal objects
         JsonReader reader = Json.createReader(new StringReader(xrefJson));
         JsonObject object = reader.readObject();
@@ -409,7 +1198,7 @@ public class PassDoiServiceTest {
     @Test
     public void testBadDoiLookup() {
         String badDoi = "10.1212/abc.DEF";
-        JsonObject blob = underTest.retrieveXrefMetdata(badDoi);
+        JsonObject blob = underTest.crossref.retrieve(badDoi, true);
         assertEquals("Resource not found.", blob.getString("error"));
     }
 
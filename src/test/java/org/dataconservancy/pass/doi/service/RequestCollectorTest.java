@@ -0,0 +1,97 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the collector which batches the lookups of concurrent requests
+ */
+public class RequestCollectorTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private Map<String, CompletableFuture<String>> lookup(List<String> keys) {
+        batches.add(keys);
+        Map<String, CompletableFuture<String>> results = new HashMap<>();
+        keys.forEach(key -> results.put(key, CompletableFuture.completedFuture(key.toUpperCase())));
+        return results;
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * test that a full batch is sent straight away, and that a repeated key shares the lookup
+     */
+    @Test
+    public void fullBatchTest() throws Exception {
+        RequestCollector<String, String> underTest = new RequestCollector<>(60000, 3, scheduler, this::lookup);
+
+        CompletableFuture<String> a = underTest.submit("a");
+        assertSame(a, underTest.submit("a"));
+        CompletableFuture<String> b = underTest.submit("b");
+        assertFalse(b.isDone());
+        CompletableFuture<String> c = underTest.submit("c");
+
+        assertEquals("A", a.get(1, TimeUnit.SECONDS));
+        assertEquals("B", b.get(1, TimeUnit.SECONDS));
+        assertEquals("C", c.get(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b", "c")), batches);
+    }
+
+    /**
+     * test that a batch which does not fill up is sent when its window closes, and the next lookup opens a new one
+     */
+    @Test
+    public void windowTest() throws Exception {
+        RequestCollector<String, String> underTest = new RequestCollector<>(200, 10, scheduler, this::lookup);
+
+        CompletableFuture<String> a = underTest.submit("a");
+        CompletableFuture<String> b = underTest.submit("b");
+        assertEquals("A", a.get(1, TimeUnit.SECONDS));
+        assertEquals("B", b.get(1, TimeUnit.SECONDS));
+
+        assertEquals("C", underTest.submit("c").get(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Collections.singletonList("c")), batches);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the retry budget and latency tracker used for Crossref calls
+ */
+public class RetryBudgetTest {
+
+    /**
+     * test that extra calls are limited to the initial allowance, then to the given fraction of original calls
+     */
+    @Test
+    public void budgetTest() {
+        RetryBudget underTest = new RetryBudget(0.5, 2);
+
+        assertTrue(underTest.tryRetry());
+        assertTrue(underTest.tryHedge());
+        assertFalse(underTest.tryRetry());
+
+        underTest.onCall();
+        assertFalse(underTest.tryRetry());
+        underTest.onCall();
+        assertTrue(underTest.tryRetry());
+
+        //a quiet spell banks no more than the allowance
+        for (int i = 0; i < 100; i++) {
+            underTest.onCall();
+        }
+        assertTrue(underTest.tryRetry());
+        assertTrue(underTest.tryRetry());
+        assertFalse(underTest.tryHedge());
+
+        assertEquals(4, underTest.getRetries());
+        assertEquals(1, underTest.getHedges());
+        assertEquals(3, underTest.getRefusals());
+    }
+
+    /**
+     * test that percentiles come from the most recent samples, once there are enough of them
+     */
+    @Test
+    public void latencyPercentileTest() {
+        LatencyTracker tracker = new LatencyTracker(20, 10);
+        for (int i = 1; i <= 9; i++) {
+            tracker.record(i);
+        }
+        assertEquals(-1, tracker.percentile(95));
+
+        tracker.record(10);
+        assertEquals(10, tracker.percentile(95));
+        assertEquals(5, tracker.percentile(50));
+
+        for (int i = 0; i < 20; i++) {
+            tracker.record(100);
+        }
+        assertEquals(100, tracker.percentile(50));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for finding similar journal names by their trigrams
+ */
+public class TrigramIndexTest {
+
+    /**
+     * test that names are reduced to their words
+     */
+    @Test
+    public void wordsTest() {
+        assertArrayEquals(new String[] {"journal", "biological", "chemistry"},
+                          TrigramIndex.words("The Journal of Biological  Chemistry"));
+        assertArrayEquals(new String[] {"revista", "espanola", "de", "cardiologia"},
+                          TrigramIndex.words("Revista Española de-Cardiología"));
+        assertArrayEquals(new String[] {"womens", "health"}, TrigramIndex.words("Women’s Health"));
+        assertEquals(0, TrigramIndex.trigrams(TrigramIndex.words("J. of the")).length);
+    }
+
+    /**
+     * test that similar names are ranked, most similar first, and that removed names are not found
+     */
+    @Test
+    public void similarTest() {
+        TrigramIndex underTest = new TrigramIndex();
+        underTest.add(0, "Journal of Biological Chemistry");
+        underTest.add(1, "Journal of Biologcal Chemistry");
+        underTest.add(2, "Journal of Chemical Physics");
+        underTest.add(3, "J Biol Chem");
+
+        List<TrigramIndex.Candidate> similar = underTest.similar("Journal of Biological Chemistry", 0.8,
+                                                                 SECONDS.toNanos(1));
+        assertEquals(3, similar.size());
+        assertEquals(0, similar.get(0).ordinal);
+        assertEquals(TrigramIndex.SAME_WORDS, similar.get(0).similarity, 0);
+        assertEquals(1, similar.get(1).ordinal);
+        assertEquals(3, similar.get(2).ordinal);
+        assertTrue(similar.get(2).similarity < TrigramIndex.ABBREVIATED);
+
+        underTest.remove(3);
+        underTest.add(0, "Chemistry");
+        similar = underTest.similar("J. Biol. Chem.", 0.8, SECONDS.toNanos(1));
+        assertEquals(1, similar.size());
+        assertEquals(1, similar.get(0).ordinal);
+    }
+
+    /**
+     * test that an abbreviation is more alike the more of the words it keeps, and never as alike as the same words
+     */
+    @Test
+    public void abbreviatedTest() {
+        String[] physics = TrigramIndex.words("Journal of Physics");
+        String[] physiology = TrigramIndex.words("Journal of Physiology");
+        double toPhysics = TrigramIndex.similarity(TrigramIndex.words("J. Phys."), physics, 0);
+        double toPhysiology = TrigramIndex.similarity(TrigramIndex.words("J. Phys."), physiology, 0);
+        double longer = TrigramIndex.similarity(TrigramIndex.words("J. Physiol."), physiology, 0);
+
+        assertTrue(toPhysics > TrigramIndex.ABBREVIATED_MIN && toPhysics < TrigramIndex.ABBREVIATED);
+        assertTrue(toPhysiology < toPhysics);
+        assertTrue(longer > toPhysiology);
+        assertEquals(TrigramIndex.SAME_WORDS, TrigramIndex.similarity(physics, physics, 0), 0);
+
+        //a single word is only alike as far as its trigrams are
+        assertEquals(0.5, TrigramIndex.similarity(new String[] {"phys"}, new String[] {"physics"}, 0.5), 0);
+    }
+}